@@ -0,0 +1,293 @@
+package org.jlab.geometry.exporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.jlab.detector.volume.G4Box;
+import org.jlab.detector.volume.Geant4Basic;
+
+/**
+ * Measures the per-export overhead of GdmlFile for small geometries,
+ * comparing a new exporter for every export with exporters reused through
+ * VolumeExporterFactory.acquireGdmlExporter() and releaseGdmlExporter().
+ * The pooled exporter is then used for one large geometry, and measured again,
+ * with the heap it still holds after it has been released.
+ * 
+ * In heap mode, measures the memory held by a GdmlFile for one large geometry
+ * and the time taken to build and write it.
+ * 
+ * In write mode, measures the write throughput for one large geometry with
+ * an increasing number of writer threads, and checks that the files are identical.
+ * 
+ * In variants mode, compares a full export per variant of one large geometry
+ * with GdmlFile.writeVariants(), for variants that each move a few volumes.
+ * 
+ * Usage: GdmlBenchmark [exports] [volumes per geometry] [volumes of the large geometry]
+ *        GdmlBenchmark heap [volumes]
+ *        GdmlBenchmark write [volumes]
+ *        GdmlBenchmark variants [volumes] [variants]
+ * 
+ * Kept in the bench source tree, so that it is not built into the library. It uses only the
+ * public API, and is compiled and run against the library and its dependencies.
+ */
+
+public final class GdmlBenchmark
+{
+	private GdmlBenchmark() {}
+	
+	
+	
+	public static void main( String[] args ) throws Exception
+	{
+		if( args.length > 0 && args[0].equals("heap") )
+		{
+			_heap( args.length > 1 ? Integer.parseInt( args[1] ) : 1000000 );
+			return;
+		}
+		if( args.length > 0 && args[0].equals("write") )
+		{
+			_write( args.length > 1 ? Integer.parseInt( args[1] ) : 1000000 );
+			return;
+		}
+		if( args.length > 0 && args[0].equals("variants") )
+		{
+			_variants( args.length > 1 ? Integer.parseInt( args[1] ) : 100000, args.length > 2 ? Integer.parseInt( args[2] ) : 100 );
+			return;
+		}
+		
+		int exports = args.length > 0 ? Integer.parseInt( args[0] ) : 2000;
+		int volumes = args.length > 1 ? Integer.parseInt( args[1] ) : 10;
+		int large = args.length > 2 ? Integer.parseInt( args[2] ) : 1000000;
+		
+		Geant4Basic tree = _buildTree( volumes );
+		File dir = Files.createTempDirectory("gdml-benchmark").toFile();
+		
+		System.out.println("exports="+ exports +" volumes="+ ( volumes + 1 ) +" output="+ dir );
+		
+		// warm up both paths before measuring
+		_run( tree, dir, exports / 4, false );
+		_run( tree, dir, exports / 4, true );
+		
+		_report("new exporter", _run( tree, dir, exports, false ), exports );
+		_report("pooled exporter", _run( tree, dir, exports, true ), exports );
+		
+		// exports and releases run one at a time, so the pool holds a single exporter
+		long before = _usedHeap();
+		GdmlFile exporter = VolumeExporterFactory.acquireGdmlExporter();
+		exporter.addTopVolume( _buildSectors( large ) );
+		exporter.writeFile( new File( dir, "large").getPath() );
+		VolumeExporterFactory.releaseGdmlExporter( exporter );
+		exporter = null;
+		System.out.printf("held after a large export of %d volumes: %.1f MB%n", large, ( _usedHeap() - before ) / 1e6 );
+		
+		_report("pooled after large", _run( tree, dir, exports, true ), exports );
+		
+		for( File file : dir.listFiles() ) { file.delete(); }
+		dir.delete();
+	}
+	
+	
+	
+	private static void _heap( int aVolumes ) throws IOException
+	{
+		Geant4Basic world = _buildSectors( aVolumes );
+		
+		long before = _usedHeap();
+		long start = System.nanoTime();
+		GdmlFile exporter = new GdmlFile();
+		exporter.addTopVolume( world );
+		long built = System.nanoTime();
+		long after = _usedHeap();
+		int volumes = exporter.getVolumeCount();
+		
+		File file = File.createTempFile("gdml-benchmark", "");
+		exporter.write( file.getPath() );
+		long written = System.nanoTime();
+		
+		System.out.printf("volumes=%d heap=%.1f MB (%.0f B/volume) build=%.0f ms write=%.0f ms%n",
+				volumes, ( after - before ) / 1e6, ( after - before ) / (double) volumes, ( built - start ) / 1e6, ( written - built ) / 1e6 );
+		
+		new File( file.getPath() +".gdml" ).delete();
+		file.delete();
+	}
+	
+	
+	
+	private static void _write( int aVolumes ) throws IOException
+	{
+		GdmlFile exporter = new GdmlFile();
+		exporter.addTopVolume( _buildSectors( aVolumes ) );
+		File file = File.createTempFile("gdml-benchmark", "");
+		File gdml = new File( file.getPath() +".gdml" );
+		
+		int cores = Runtime.getRuntime().availableProcessors();
+		byte[] reference = null;
+		for( int threads = 1; threads <= cores; threads = threads == cores ? cores + 1 : Math.min( 2*threads, cores ) )
+		{
+			exporter.setWriteThreads( threads );
+			long best = Long.MAX_VALUE;
+			for( int i = 0; i < 3; i++ )
+			{
+				long start = System.nanoTime();
+				exporter.write( file.getPath() );
+				best = Math.min( best, System.nanoTime() - start );
+			}
+			
+			byte[] bytes = Files.readAllBytes( gdml.toPath() );
+			if( reference == null ) reference = bytes;
+			System.out.printf("threads=%-3d %8.0f ms %8.1f MB/s  %s%n", threads, best / 1e6, bytes.length / ( best / 1e3 ),
+					Arrays.equals( bytes, reference ) ? "identical" : "DIFFERS" );
+		}
+		
+		gdml.delete();
+		file.delete();
+	}
+	
+	
+	
+	private static void _variants( int aVolumes, int aVariants ) throws IOException
+	{
+		Geant4Basic world = _buildSectors( aVolumes );
+		int sectors = world.getChildren().size();
+		File dir = Files.createTempDirectory("gdml-benchmark").toFile();
+		
+		// each variant moves three boxes
+		Random random = new Random( 1 );
+		List<GeometryPerturbation> variants = new ArrayList<>();
+		for( int i = 0; i < aVariants; i++ )
+		{
+			GeometryPerturbation variant = new GeometryPerturbation();
+			for( int j = 0; j < 3; j++ )
+			{
+				Geant4Basic sector = world.getChildren().get( random.nextInt( sectors ) );
+				Geant4Basic box = sector.getChildren().get( random.nextInt( sector.getChildren().size() ) );
+				variant.addTranslation( box.getName(), 0.01 * random.nextGaussian(), 0.01 * random.nextGaussian(), 0.0 );
+			}
+			variants.add( variant );
+		}
+		
+		long start = System.nanoTime();
+		for( int i = 0; i < aVariants; i++ )
+		{
+			GdmlFile exporter = new GdmlFile();
+			exporter.addTopVolume( world );
+			exporter.write( new File( dir, "full_"+ i ).getPath() );
+		}
+		long full = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		GdmlFile exporter = new GdmlFile();
+		exporter.addTopVolume( world );
+		exporter.writeVariants( new File( dir, "variant" ).getPath(), variants );
+		long shared = System.nanoTime() - start;
+		
+		System.out.printf("volumes=%d variants=%d full exports=%.0f ms writeVariants=%.0f ms%n", exporter.getVolumeCount(), aVariants, full / 1e6, shared / 1e6 );
+		
+		for( File file : dir.listFiles() ) { file.delete(); }
+		dir.delete();
+	}
+	
+	
+	
+	private static Geant4Basic _buildSectors( int aVolumes )
+	{
+		// world, then sectors of 1000 volumes each
+		int sectors = Math.max( 1, aVolumes / 1000 );
+		G4Box world = new G4Box("world", 1e4, 1e4, 1e4 );
+		for( int i = 0; i < sectors; i++ )
+		{
+			G4Box sector = new G4Box("sector"+ i, 100.0, 100.0, 100.0 );
+			sector.setMother( world );
+			sector.translate( i, 0.0, 0.0 );
+			for( int j = 0; j < aVolumes / sectors - 1; j++ )
+			{
+				G4Box box = new G4Box("s"+ i +"_box"+ j, 1.0, 1.0, 1.0 );
+				box.setMother( sector );
+				box.translate( 0.0, j, 0.0 );
+			}
+		}
+		return world;
+	}
+	
+	
+	
+	private static long _usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for( int i = 0; i < 4; i++ ) { System.gc(); }
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	
+	
+	private static long[] _run( Geant4Basic aTree, File aDir, int aExports, boolean aPooled ) throws IOException
+	{
+		long gcCount = _gcCount(), gcTime = _gcTime();
+		long start = System.nanoTime();
+		
+		for( int i = 0; i < aExports; i++ )
+		{
+			if( aPooled )
+			{
+				GdmlFile exporter = VolumeExporterFactory.acquireGdmlExporter();
+				exporter.addTopVolume( aTree );
+				exporter.writeFile( new File( aDir, "geometry"+ ( i % 16 ) ).getPath() );
+				VolumeExporterFactory.releaseGdmlExporter( exporter );
+			}
+			else
+			{
+				GdmlExporter exporter = VolumeExporterFactory.createGdmlFactory();
+				exporter.addTopVolume( aTree );
+				exporter.writeFile( new File( aDir, "geometry"+ ( i % 16 ) ).getPath() );
+			}
+		}
+		
+		return new long[]{ System.nanoTime() - start, _gcCount() - gcCount, _gcTime() - gcTime };
+	}
+	
+	
+	
+	private static void _report( String aLabel, long[] aResult, int aExports )
+	{
+		System.out.printf("%-18s %8.1f us/export  %5d GCs  %6d ms GC%n", aLabel, aResult[0] / 1e3 / aExports, aResult[1], aResult[2] );
+	}
+	
+	
+	
+	private static Geant4Basic _buildTree( int aVolumes )
+	{
+		G4Box world = new G4Box("world", 100.0, 100.0, 100.0 );
+		for( int i = 0; i < aVolumes; i++ )
+		{
+			G4Box box = new G4Box("box"+ i, 1.0, 2.0, 3.0 );
+			box.setMother( world );
+			box.translate( i * 3.0, 0.0, 0.0 );
+		}
+		return world;
+	}
+	
+	
+	
+	private static long _gcCount()
+	{
+		long count = 0;
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) { count += Math.max( 0, gc.getCollectionCount() ); }
+		return count;
+	}
+	
+	
+	
+	private static long _gcTime()
+	{
+		long time = 0;
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) { time += Math.max( 0, gc.getCollectionTime() ); }
+		return time;
+	}
+}
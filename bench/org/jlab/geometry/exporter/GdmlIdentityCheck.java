@@ -0,0 +1,269 @@
+package org.jlab.geometry.exporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jlab.detector.volume.G4Box;
+import org.jlab.detector.volume.G4Tubs;
+import org.jlab.detector.volume.Geant4Basic;
+
+import eu.mihosoft.vrl.v3d.Vector3d;
+
+/**
+ * Checks that the ways GdmlFile can write a geometry give byte-identical files,
+ * on a fixed tree of boxes and tubes that is rebuilt the same way for every export.
+ * 
+ * For each combination of local or global placements, flattening and the index file,
+ * the file written on one thread by a new exporter is the reference. It is compared with
+ * the files written on several threads, with and without the schema check, and by a pooled
+ * exporter that has already been used for another geometry. The default tree is large
+ * enough for the one-thread writer to pass through its sink, and for the parallel writer
+ * to reuse its chunk buffers.
+ * 
+ * The files written by GdmlFile.writeVariants() are compared with full exports of the
+ * tree with each variant's changes applied to it, on one thread and on several.
+ * 
+ * Exits with status 1 at the first file that differs.
+ * 
+ * Usage: GdmlIdentityCheck [sectors] [layers per sector]
+ * 
+ * Kept in the bench source tree, so that it is not built into the library. It uses only the
+ * public API, and is compiled and run against the library and its dependencies.
+ */
+
+public final class GdmlIdentityCheck
+{
+	private static final int[] THREADS = { 2, 3, 8 };
+	
+	private static int sChecked;
+	
+	
+	
+	private GdmlIdentityCheck() {}
+	
+	
+	
+	public static void main( String[] args ) throws Exception
+	{
+		int sectors = args.length > 0 ? Integer.parseInt( args[0] ) : 24;
+		int layers = args.length > 1 ? Integer.parseInt( args[1] ) : 500;
+		
+		File dir = Files.createTempDirectory("gdml-identity").toFile();
+		System.out.println("sectors="+ sectors +" layers="+ layers +" output="+ dir );
+		
+		try
+		{
+			for( String loc : new String[]{ "local", "global" } )
+			{
+				for( boolean flatten : new boolean[]{ false, true } )
+				{
+					for( boolean index : new boolean[]{ false, true } )
+						_checkWrite( dir, sectors, layers, loc, flatten, index );
+				}
+				_checkVariants( dir, sectors, layers, loc );
+			}
+		}
+		finally
+		{
+			for( File file : dir.listFiles() ) { file.delete(); }
+			dir.delete();
+		}
+		
+		System.out.println( sChecked +" files identical");
+	}
+	
+	
+	
+	private static void _checkWrite( File aDir, int aSectors, int aLayers, String aLoc, boolean aFlatten, boolean aIndex ) throws IOException
+	{
+		String label = aLoc +( aFlatten ? " flattened" : "" )+( aIndex ? " with index" : "" );
+		
+		GdmlFile exporter = _exporter( aLoc, aFlatten, aIndex, 1, false );
+		exporter.addTopVolume( _buildTree( aSectors, aLayers ) );
+		byte[][] reference = _write( exporter, aDir, "reference", aIndex );
+		
+		for( int threads : THREADS )
+		{
+			for( boolean check : new boolean[]{ false, true } )
+			{
+				exporter = _exporter( aLoc, aFlatten, aIndex, threads, check );
+				exporter.addTopVolume( _buildTree( aSectors, aLayers ) );
+				_compare( label +", "+ threads +" threads"+( check ? ", checked" : "" ), reference, _write( exporter, aDir, "parallel", aIndex ) );
+			}
+		}
+		
+		// a pooled exporter, after it has been used for another geometry
+		GdmlFile pooled = VolumeExporterFactory.acquireGdmlExporter();
+		pooled.setWriteThreads( 2 );
+		pooled.addTopVolume( _buildTree( 2, 3 ) );
+		pooled.write( new File( aDir, "other").getPath() );
+		VolumeExporterFactory.releaseGdmlExporter( pooled );
+		
+		pooled = VolumeExporterFactory.acquireGdmlExporter();
+		try {
+			pooled.setPositionLoc( aLoc );
+			pooled.setRotationLoc( aLoc );
+			pooled.setFlatten( aFlatten );
+			pooled.setWriteIndex( aIndex );
+			pooled.addTopVolume( _buildTree( aSectors, aLayers ) );
+			_compare( label +", pooled", reference, _write( pooled, aDir, "pooled", aIndex ) );
+		} finally {
+			VolumeExporterFactory.releaseGdmlExporter( pooled );
+		}
+	}
+	
+	
+	
+	private static void _checkVariants( File aDir, int aSectors, int aLayers, String aLoc ) throws IOException
+	{
+		// moves and turns a few layers and a sector in each variant, the first changes nothing
+		Random random = new Random( 1 );
+		List<GeometryPerturbation> variants = new ArrayList<>();
+		variants.add( new GeometryPerturbation() );
+		for( int i = 0; i < 8; i++ )
+		{
+			GeometryPerturbation variant = new GeometryPerturbation();
+			for( int j = 0; j < 3; j++ )
+			{
+				String layer = "s"+ ( 1 + random.nextInt( aSectors ) ) +"_layer"+ ( 1 + random.nextInt( aLayers ) );
+				variant.addTranslation( layer, 0.01 * random.nextGaussian(), 0.01 * random.nextGaussian(), 0.0 );
+				if( j == 0 ) variant.addRotation( layer, 0.001 * random.nextGaussian(), 0.0, 0.0 );
+			}
+			if( i % 2 == 0 ) variant.addRotation("sector"+ ( 1 + random.nextInt( aSectors ) ), 0.0, 0.0, 0.001 * random.nextGaussian() );
+			variants.add( variant );
+		}
+		
+		List<byte[][]> references = new ArrayList<>();
+		for( GeometryPerturbation variant : variants )
+		{
+			Geant4Basic tree = _buildTree( aSectors, aLayers );
+			_apply( tree, variant );
+			GdmlFile exporter = _exporter( aLoc, false, false, 1, false );
+			exporter.addTopVolume( tree );
+			references.add( _write( exporter, aDir, "full", false ) );
+		}
+		
+		for( int threads : new int[]{ 1, THREADS[1] } )
+		{
+			GdmlFile exporter = _exporter( aLoc, false, false, threads, false );
+			exporter.addTopVolume( _buildTree( aSectors, aLayers ) );
+			String name = new File( aDir, "variant").getPath();
+			exporter.writeVariants( name, variants );
+			for( int i = 0; i < variants.size(); i++ )
+			{
+				byte[] bytes = Files.readAllBytes( new File( name +"_"+ i +".gdml").toPath() );
+				_compare( aLoc +" variant "+ i +", "+ threads +" threads", references.get( i ), new byte[][]{ bytes } );
+			}
+		}
+	}
+	
+	
+	
+	private static GdmlFile _exporter( String aLoc, boolean aFlatten, boolean aIndex, int aThreads, boolean aCheck )
+	{
+		GdmlFile exporter = new GdmlFile();
+		exporter.setPositionLoc( aLoc );
+		exporter.setRotationLoc( aLoc );
+		exporter.setFlatten( aFlatten );
+		exporter.setWriteIndex( aIndex );
+		exporter.setWriteThreads( aThreads );
+		exporter.setCheckSchema( aCheck );
+		return exporter;
+	}
+	
+	
+	
+	private static byte[][] _write( GdmlFile aExporter, File aDir, String aName, boolean aIndex ) throws IOException
+	{ // the file, and its index if there is one
+		File file = new File( aDir, aName +".gdml");
+		aExporter.write( new File( aDir, aName ).getPath() );
+		byte[] bytes = Files.readAllBytes( file.toPath() );
+		if( !aIndex )
+			return new byte[][]{ bytes };
+		return new byte[][]{ bytes, Files.readAllBytes( new File( file.getPath() +".idx" ).toPath() ) };
+	}
+	
+	
+	
+	private static void _compare( String aLabel, byte[][] aExpected, byte[][] aActual )
+	{
+		for( int f = 0; f < aExpected.length; f++ )
+		{
+			byte[] expected = aExpected[f], actual = aActual[f];
+			int n = Math.min( expected.length, actual.length );
+			int i = 0;
+			while( i < n && expected[i] == actual[i] ) i++;
+			if( i < n || expected.length != actual.length )
+			{
+				System.out.println( aLabel +": "+ ( f == 0 ? "file" : "index") +" differs at byte "+ i +" ("+ actual.length +" bytes, expected "+ expected.length +")");
+				System.exit( 1 );
+			}
+			sChecked++;
+		}
+		System.out.printf("%-48s identical, %d bytes%n", aLabel, aExpected[0].length );
+	}
+	
+	
+	
+	private static void _apply( Geant4Basic aTree, GeometryPerturbation aVariant )
+	{ // as GeometryPerturbation describes it, with angles in GdmlFile's default actual unit, radians
+		for( String name : aVariant.getVolumeNames() )
+		{
+			Geant4Basic volume = _find( aTree, name );
+			double[] move = aVariant.getTranslation( name );
+			double[] turn = aVariant.getRotation( name );
+			
+			Vector3d pos = volume.getLocalPosition();
+			double[] rot = volume.getLocalRotation();
+			volume.setPosition( pos.x + move[0], pos.y + move[1], pos.z + move[2] );
+			volume.rotate( volume.getLocalRotationOrder(), rot[0] + turn[0], rot[1] + turn[1], rot[2] + turn[2] );
+		}
+	}
+	
+	
+	
+	private static Geant4Basic _find( Geant4Basic aVolume, String aName )
+	{
+		if( aVolume.getName().equals( aName ) )
+			return aVolume;
+		for( Geant4Basic child : aVolume.getChildren() )
+		{
+			Geant4Basic found = _find( child, aName );
+			if( found != null )
+				return found;
+		}
+		return null;
+	}
+	
+	
+	
+	private static Geant4Basic _buildTree( int aSectors, int aLayers )
+	{
+		// world, then rotated sectors of tube layers, every other layer turned, and an empty box
+		G4Box world = new G4Box("world", 500.0, 500.0, 500.0 );
+		for( int s = 1; s <= aSectors; s++ )
+		{
+			G4Box sector = new G4Box("sector"+ s, 100.0, 100.0, 100.0 );
+			sector.setMother( world );
+			sector.setId( s );
+			sector.translate( 10.0 * s, 0.5, -3.0 );
+			sector.rotate("xyz", 0.0, 0.0, Math.PI / 3 * s );
+			for( int l = 1; l <= aLayers; l++ )
+			{
+				G4Tubs layer = new G4Tubs("s"+ s +"_layer"+ l, 1.0, 2.0, 3.0, 0.0, Math.PI );
+				layer.setMother( sector );
+				layer.setId( s, l );
+				layer.translate( 0.0, 0.0, 1.5 * l );
+				if( l % 2 == 0 ) layer.rotate("zyx", 0.1, 0.2, 0.3 );
+			}
+		}
+		G4Box empty = new G4Box("empty", 1.0, 1.0, 1.0 );
+		empty.setMother( world );
+		empty.setId( 0 );
+		return world;
+	}
+}
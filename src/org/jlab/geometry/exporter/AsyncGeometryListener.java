@@ -0,0 +1,176 @@
+package org.jlab.geometry.exporter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jlab.detector.volume.Geant4Basic;
+
+/**
+ * Forwards geometry events to another listener on a separate thread.
+ * 
+ * Events are passed through a bounded queue, so the walker blocks instead of buffering
+ * the whole geometry when the sink falls behind. endGeometry() waits until the sink has
+ * consumed every event and rethrows the first exception the sink raised.
+ * If the sink thread stops early, e.g. because it was interrupted, events are refused
+ * with an IllegalStateException instead of blocking on the full queue.
+ */
+
+public class AsyncGeometryListener implements GeometryListener
+{
+	private static final Runnable END = new Runnable() { public void run() {} };
+	private static final long PUT_CHECK_MILLIS = 100; // how often a blocked _put() checks that the sink thread is alive
+	
+	private final GeometryListener mDelegate;
+	private final BlockingQueue<Runnable> mQueue;
+	private Thread mThread;
+	private volatile Throwable mError;
+	
+	
+	
+	public AsyncGeometryListener( GeometryListener aDelegate, int aQueueCapacity ) throws IllegalArgumentException
+	{
+		if( aDelegate == null )
+			throw new IllegalArgumentException("empty GeometryListener");
+		if( aQueueCapacity < 1 )
+			throw new IllegalArgumentException("zero/negative aQueueCapacity");
+		
+		mDelegate = aDelegate;
+		mQueue = new ArrayBlockingQueue<>( aQueueCapacity );
+	}
+	
+	
+	
+	public void beginGeometry( final Geant4Basic aTopVol )
+	{
+		if( mThread != null )
+			throw new IllegalStateException("geometry already in progress");
+		
+		mError = null;
+		mThread = new Thread( this::_drain, "geometry-sink-"+ mDelegate.getClass().getSimpleName() );
+		mThread.setDaemon( true );
+		mThread.start();
+		
+		try {
+			this._put( () -> mDelegate.beginGeometry( aTopVol ) );
+		} catch( RuntimeException e ) {
+			// the walker does not end a listener that failed to begin
+			mThread.interrupt();
+			mThread = null;
+			mQueue.clear();
+			throw e;
+		}
+	}
+	
+	
+	
+	public void onMaterial( final String aMatRef )
+	{
+		this._put( () -> mDelegate.onMaterial( aMatRef ) );
+	}
+	
+	
+	
+	public void onSolid( final Geant4Basic aSolid )
+	{
+		this._put( () -> mDelegate.onSolid( aSolid ) );
+	}
+	
+	
+	
+	public void onVolume( final Geant4Basic aSolid, final String aMatRef )
+	{
+		this._put( () -> mDelegate.onVolume( aSolid, aMatRef ) );
+	}
+	
+	
+	
+	public void onPlacement( final GeometryPlacement aPlacement )
+	{
+		this._put( () -> mDelegate.onPlacement( aPlacement ) );
+	}
+	
+	
+	
+	public void onWorld( final Geant4Basic aTopVol )
+	{
+		this._put( () -> mDelegate.onWorld( aTopVol ) );
+	}
+	
+	
+	
+	public void endGeometry()
+	{
+		if( mThread == null )
+			return;
+		
+		try {
+			this._put( mDelegate::endGeometry );
+			this._put( END );
+			mThread.join();
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for "+ mThread.getName(), e );
+		} finally {
+			mThread = null;
+			mQueue.clear(); // events a stopped sink thread did not take
+		}
+		
+		Throwable error = mError;
+		if( error instanceof RuntimeException )
+			throw (RuntimeException) error;
+		if( error instanceof Error )
+			throw (Error) error;
+		if( error != null )
+			throw new IllegalStateException( error );
+	}
+	
+	
+	
+	private void _put( Runnable aEvent )
+	{ // blocks while the queue is full, until the sink thread takes an event or stops
+		Thread thread = mThread;
+		if( thread == null )
+			throw new IllegalStateException("no geometry in progress");
+		
+		try {
+			while( !mQueue.offer( aEvent, PUT_CHECK_MILLIS, TimeUnit.MILLISECONDS ) )
+			{
+				if( !thread.isAlive() )
+					throw new IllegalStateException( thread.getName() +" has stopped", mError );
+			}
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while queueing geometry event", e );
+		}
+	}
+	
+	
+	
+	private void _drain()
+	{
+		while( true )
+		{
+			Runnable event;
+			try {
+				event = mQueue.take();
+			} catch( InterruptedException e ) {
+				mError = e;
+				return;
+			}
+			
+			if( event == END )
+				return;
+			
+			// after a failure keep draining, so that the walker never blocks on a full queue
+			if( mError == null )
+			{
+				try {
+					event.run();
+				} catch( Throwable t ) {
+					mError = t;
+				}
+			}
+		}
+	}
+}
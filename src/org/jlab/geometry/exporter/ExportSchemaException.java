@@ -0,0 +1,33 @@
+package org.jlab.geometry.exporter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by ExportSchemaValidator when a document does not match the export schema.
+ * Each error gives the line, the entry it was found in, and the schema message.
+ */
+
+public class ExportSchemaException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+	
+	private final List<String> mErrors;
+	
+	
+	
+	public ExportSchemaException( String aSource, List<String> aErrors )
+	{
+		super("\""+ aSource +"\" does not match the export schema, "+ aErrors.size() +" error(s), first: "+ aErrors.get( 0 ) );
+		mErrors = Collections.unmodifiableList( new ArrayList<>( aErrors ) );
+	}
+	
+	
+	
+	public List<String> getErrors()
+	{
+		return mErrors;
+	}
+}
@@ -0,0 +1,277 @@
+package org.jlab.geometry.exporter;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+/**
+ * <h1> Export Schema Validator </h1>
+ * 
+ * Checks documents written by GdmlFile against "export-schema.xsd", a schema bundled with
+ * this package that describes the elements and attributes GdmlFile writes. It is not the
+ * GDML schema: a document that passes has the structure GdmlFile is meant to write, with
+ * the attributes it needs and numbers that parse, but is not shown to be valid GDML, and
+ * names and references are not checked.
+ * 
+ * The schema is compiled once, the first time it is used, and shared by all checks.
+ * Documents are checked while they are parsed with SAX, without building a DOM.
+ * Errors are reported with their line number and the define, material, solid or volume
+ * they were found in.
+ * 
+ * @see ExportSchemaException
+ */
+
+public final class ExportSchemaValidator
+{
+	public static final String SCHEMA_RESOURCE = "export-schema.xsd";
+	private static final int MAX_ERRORS = 100;
+	
+	
+	
+	private ExportSchemaValidator() {}
+	
+	
+	
+	private static final class SchemaHolder
+	{ // compiled when first used
+		static final Schema SCHEMA = _compile();
+	}
+	
+	
+	
+	public static Schema getSchema()
+	{
+		return SchemaHolder.SCHEMA;
+	}
+	
+	
+	
+	public static void check( File aFile ) throws IOException, ExportSchemaException
+	{
+		try( InputStream in = new BufferedInputStream( new FileInputStream( aFile ), 1 << 16 ) )
+		{
+			check( in, aFile.getPath() );
+		}
+	}
+	
+	
+	
+	public static void check( InputStream aIn, String aSource ) throws IOException, ExportSchemaException
+	{
+		ErrorCollector errors = new ErrorCollector();
+		ValidatorHandler validator = getSchema().newValidatorHandler();
+		validator.setErrorHandler( errors );
+		
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware( true );
+			factory.setFeature( XMLConstants.FEATURE_SECURE_PROCESSING, true );
+			XMLReader reader = factory.newSAXParser().getXMLReader();
+			reader.setContentHandler( new EntryTracker( validator, errors ) );
+			reader.setErrorHandler( errors );
+			
+			InputSource source = new InputSource( aIn );
+			source.setSystemId( aSource );
+			reader.parse( source );
+		} catch( ParserConfigurationException e ) {
+			throw new IllegalStateException("could not create a SAX parser", e );
+		} catch( SAXException e ) {
+			// the errors are already collected, unless there were too many
+			if( errors.mErrors.isEmpty() )
+				throw new IOException("could not check \""+ aSource +"\"", e );
+		}
+		
+		if( !errors.mErrors.isEmpty() )
+			throw new ExportSchemaException( aSource, errors.mErrors );
+	}
+	
+	
+	
+	static void check( ByteBuffer[] aContents, String aSource ) throws IOException, ExportSchemaException
+	{ // e.g. the buffers a file was written from, which are left unchanged
+		check( aContents.length, i -> aContents[i], aSource );
+	}
+	
+	
+	
+	static void check( int aCount, Contents aContents, String aSource ) throws IOException, ExportSchemaException
+	{ // reads each buffer when the parser reaches it, so the later ones can still be being written
+		check( new ByteBuffersInputStream( aCount, aContents ), aSource );
+	}
+	
+	
+	
+	/**
+	 * The buffers of a document, in order. get() may wait until a buffer is filled,
+	 * and its result is not changed.
+	 */
+	interface Contents
+	{
+		ByteBuffer get( int aIndex ) throws IOException;
+	}
+	
+	
+	
+	private static Schema _compile()
+	{
+		URL url = ExportSchemaValidator.class.getResource( SCHEMA_RESOURCE );
+		if( url == null )
+			throw new IllegalStateException("could not find schema resource \""+ SCHEMA_RESOURCE +"\"");
+		try {
+			return SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( url );
+		} catch( SAXException e ) {
+			throw new IllegalStateException("could not compile schema \""+ url +"\"", e );
+		}
+	}
+	
+	
+	
+	/**
+	 * Collects the errors of one check, with the entry that is being parsed.
+	 */
+	private static final class ErrorCollector implements ErrorHandler
+	{
+		final List<String> mErrors = new ArrayList<>();
+		String mEntry;
+		
+		
+		
+		public void warning( SAXParseException e )
+		{
+		}
+		
+		
+		
+		public void error( SAXParseException e ) throws SAXException
+		{
+			mErrors.add("line "+ e.getLineNumber() + ( mEntry == null ? "" : " in \""+ mEntry +"\"" ) +": "+ e.getMessage() );
+			if( mErrors.size() >= MAX_ERRORS )
+				throw e;
+		}
+		
+		
+		
+		public void fatalError( SAXParseException e ) throws SAXException
+		{
+			mErrors.add("line "+ e.getLineNumber() + ( mEntry == null ? "" : " in \""+ mEntry +"\"" ) +": "+ e.getMessage() );
+			throw e;
+		}
+	}
+	
+	
+	
+	/**
+	 * Passes the document on to the validator, remembering the name of the entry of
+	 * a section, such as a volume, that the parser is in.
+	 */
+	private static final class EntryTracker implements ContentHandler
+	{
+		private final ContentHandler mValidator;
+		private final ErrorCollector mErrors;
+		private int mDepth;
+		
+		
+		
+		EntryTracker( ContentHandler aValidator, ErrorCollector aErrors )
+		{
+			mValidator = aValidator;
+			mErrors = aErrors;
+		}
+		
+		
+		
+		public void startElement( String aUri, String aLocalName, String aQName, Attributes aAttributes ) throws SAXException
+		{
+			if( ++mDepth == 3 ) // gdml, section, entry
+				mErrors.mEntry = aAttributes.getValue("name");
+			mValidator.startElement( aUri, aLocalName, aQName, aAttributes );
+		}
+		
+		
+		
+		public void endElement( String aUri, String aLocalName, String aQName ) throws SAXException
+		{
+			mValidator.endElement( aUri, aLocalName, aQName );
+			if( mDepth-- == 3 )
+				mErrors.mEntry = null;
+		}
+		
+		
+		
+		public void setDocumentLocator( Locator aLocator ) { mValidator.setDocumentLocator( aLocator ); }
+		public void startDocument() throws SAXException { mValidator.startDocument(); }
+		public void endDocument() throws SAXException { mValidator.endDocument(); }
+		public void startPrefixMapping( String aPrefix, String aUri ) throws SAXException { mValidator.startPrefixMapping( aPrefix, aUri ); }
+		public void endPrefixMapping( String aPrefix ) throws SAXException { mValidator.endPrefixMapping( aPrefix ); }
+		public void characters( char[] aChars, int aStart, int aLength ) throws SAXException { mValidator.characters( aChars, aStart, aLength ); }
+		public void ignorableWhitespace( char[] aChars, int aStart, int aLength ) throws SAXException { mValidator.ignorableWhitespace( aChars, aStart, aLength ); }
+		public void processingInstruction( String aTarget, String aData ) throws SAXException { mValidator.processingInstruction( aTarget, aData ); }
+		public void skippedEntity( String aName ) throws SAXException { mValidator.skippedEntity( aName ); }
+	}
+	
+	
+	
+	/**
+	 * Reads a sequence of buffers without changing their positions.
+	 */
+	private static final class ByteBuffersInputStream extends InputStream
+	{
+		private final int mCount;
+		private final Contents mContents;
+		private ByteBuffer mBuffer;
+		private int mCurrent = -1;
+		
+		
+		
+		ByteBuffersInputStream( int aCount, Contents aContents )
+		{
+			mCount = aCount;
+			mContents = aContents;
+		}
+		
+		
+		
+		public int read() throws IOException
+		{
+			byte[] one = new byte[1];
+			return this.read( one, 0, 1 ) < 0 ? -1 : one[0] & 0xff;
+		}
+		
+		
+		
+		public int read( byte[] aBytes, int aOffset, int aLength ) throws IOException
+		{
+			while( mBuffer == null || !mBuffer.hasRemaining() )
+			{
+				if( ++mCurrent >= mCount )
+					return -1;
+				mBuffer = mContents.get( mCurrent ).duplicate();
+			}
+			int n = Math.min( aLength, mBuffer.remaining() );
+			mBuffer.get( aBytes, aOffset, n );
+			return n;
+		}
+	}
+}
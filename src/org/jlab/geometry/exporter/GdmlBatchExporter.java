@@ -0,0 +1,447 @@
+package org.jlab.geometry.exporter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <h1> GDML Batch Exporter </h1>
+ * 
+ * Exports many geometries, each given by a GeometryProvider and the name of the file to write.
+ * 
+ * Geometries are built on a pool of worker threads, set by setThreads(), with exporters taken
+ * from VolumeExporterFactory.acquireGdmlExporter(). Files are written on virtual threads where
+ * the runtime has them (Java 21 and later), otherwise on a pool of platform threads of the same size.
+ * At most twice as many geometries as there are workers are held at once.
+ * 
+ * Every export is timed, and an export that fails is reported with its exception, see Result,
+ * while the others carry on. run() returns a Report with the timings, the throughput, and the
+ * peak heap use.
+ * 
+ * A manifest lists one export per line, the provider class name and the output name without
+ * ".gdml", separated by whitespace. Blank lines and lines starting with # are skipped.
+ * 
+ * Usage: GdmlBatchExporter [-threads n] [-check-schema] [-index] [-verbose] manifest...
+ */
+
+public class GdmlBatchExporter
+{
+	private final List<Callable<GeometryProvider>> mProviders = new ArrayList<>();
+	private final List<String> mProviderNames = new ArrayList<>();
+	private final List<String> mNames = new ArrayList<>();
+	
+	private int mThreads = Runtime.getRuntime().availableProcessors();
+	private boolean mVerbose = false;
+	private boolean mCheckSchema = false;
+	private boolean mWriteIndex = false;
+	
+	
+	
+	public static void main( String[] args ) throws InterruptedException
+	{
+		GdmlBatchExporter batch = new GdmlBatchExporter();
+		List<String> manifests = new ArrayList<>();
+		try {
+			for( int i = 0; i < args.length; i++ )
+			{
+				switch( args[i] )
+				{
+				case "-threads":  batch.setThreads( Integer.parseInt( args[++i] ) ); break;
+				case "-check-schema": batch.setCheckSchema( true ); break;
+				case "-index":    batch.setWriteIndex( true ); break;
+				case "-verbose":  batch.setVerbose( true ); break;
+				default:
+					if( args[i].startsWith("-") )
+						throw new IllegalArgumentException("unknown option \""+ args[i] +"\"");
+					manifests.add( args[i] );
+				}
+			}
+			if( manifests.isEmpty() )
+				throw new IllegalArgumentException("no manifest");
+		} catch( IllegalArgumentException | ArrayIndexOutOfBoundsException e ) {
+			System.err.println( e instanceof ArrayIndexOutOfBoundsException ? "missing value for "+ args[args.length - 1] : e.getMessage() );
+			System.err.println("usage: GdmlBatchExporter [-threads n] [-check-schema] [-index] [-verbose] manifest...");
+			System.exit( 2 );
+		}
+		
+		for( String manifest : manifests )
+		{
+			try {
+				batch.addManifest( new File( manifest ) );
+			} catch( IOException e ) {
+				System.err.println("could not read manifest \""+ manifest +"\": "+ e );
+				System.exit( 2 );
+			}
+		}
+		
+		Report report = batch.run();
+		report.print( System.out );
+		System.exit( report.getFailures().isEmpty() ? 0 : 1 );
+	}
+	
+	
+	
+	// number of threads the geometries are built on
+	public void setThreads( int aThreads ) throws IllegalArgumentException
+	{
+		if( aThreads < 1 )
+			throw new IllegalArgumentException("threads must be at least 1: "+ aThreads );
+		mThreads = aThreads;
+	}
+	
+	
+	
+	public void setVerbose( boolean aVerbose )
+	{
+		mVerbose = aVerbose;
+	}
+	
+	
+	
+	// passed on to every exporter, see GdmlFile.setCheckSchema()
+	public void setCheckSchema( boolean aCheckSchema )
+	{
+		mCheckSchema = aCheckSchema;
+	}
+	
+	
+	
+	// passed on to every exporter, see GdmlFile.setWriteIndex()
+	public void setWriteIndex( boolean aWriteIndex )
+	{
+		mWriteIndex = aWriteIndex;
+	}
+	
+	
+	
+	public int getExportCount()
+	{
+		return mNames.size();
+	}
+	
+	
+	
+	public void addExport( GeometryProvider aProvider, String aName ) throws IllegalArgumentException
+	{
+		if( aProvider == null )
+			throw new IllegalArgumentException("empty GeometryProvider");
+		this._add( () -> aProvider, aProvider.getClass().getName(), aName );
+	}
+	
+	
+	
+	/**
+	 * Adds the exports listed in aManifest. The provider classes are only loaded when the
+	 * export is run, so that a missing class fails its own export, not the whole batch.
+	 */
+	public void addManifest( File aManifest ) throws IOException, IllegalArgumentException
+	{
+		int lineNumber = 0;
+		try( BufferedReader reader = Files.newBufferedReader( aManifest.toPath(), StandardCharsets.UTF_8 ) )
+		{
+			String line;
+			while( (line = reader.readLine()) != null )
+			{
+				lineNumber++;
+				line = line.trim();
+				if( line.isEmpty() || line.startsWith("#") )
+					continue;
+				
+				String[] fields = line.split("\\s+");
+				if( fields.length != 2 )
+					throw new IllegalArgumentException( aManifest +" line "+ lineNumber +": expected a provider class and an output name, found \""+ line +"\"");
+				
+				String className = fields[0];
+				this._add( () -> _newProvider( className ), className, fields[1] );
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Runs every export that has been added, and waits for them to finish.
+	 * Exports that fail do not stop the others, and are returned in the Report.
+	 */
+	public Report run() throws InterruptedException
+	{
+		int exports = mNames.size();
+		List<Result> results = new ArrayList<>( exports );
+		for( int i = 0; i < exports; i++ ) { results.add( new Result( mNames.get( i ), mProviderNames.get( i ) ) ); }
+		
+		// each exporter writes with its share of the cores
+		int writeThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / mThreads );
+		
+		List<MemoryPoolMXBean> heap = new ArrayList<>();
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+		{
+			if( pool.getType() == MemoryType.HEAP )
+			{
+				pool.resetPeakUsage();
+				heap.add( pool );
+			}
+		}
+		
+		ExecutorService builders = _newPool( mThreads, "gdml-batch" );
+		ExecutorService writers = _newWriterPool( mThreads );
+		Semaphore held = new Semaphore( 2 * mThreads );
+		CountDownLatch done = new CountDownLatch( exports );
+		
+		long start = System.nanoTime();
+		try
+		{
+			for( int i = 0; i < exports; i++ )
+			{
+				Callable<GeometryProvider> providers = mProviders.get( i );
+				Result result = results.get( i );
+				held.acquire();
+				builders.execute( () -> {
+					GdmlFile exporter = null;
+					boolean handedOn = false;
+					try {
+						long t0 = System.nanoTime();
+						GeometryProvider provider = providers.call();
+						exporter = VolumeExporterFactory.acquireGdmlExporter();
+						exporter.setWriteThreads( writeThreads );
+						exporter.setCheckSchema( mCheckSchema );
+						exporter.setWriteIndex( mWriteIndex );
+						provider.configure( exporter );
+						exporter.addTopVolume( provider.createGeometry() );
+						result.mBuildNanos = System.nanoTime() - t0;
+						
+						GdmlFile built = exporter;
+						writers.execute( () -> this._write( built, result, held, done ) );
+						handedOn = true; // the writer releases the exporter
+					} catch( Throwable e ) {
+						result.mError = e;
+						if(mVerbose) System.out.println("failed to build \""+ result.mName +"\": "+ e );
+					} finally {
+						if( !handedOn )
+						{
+							if( exporter != null ) VolumeExporterFactory.releaseGdmlExporter( exporter );
+							held.release();
+							done.countDown();
+						}
+					}
+				});
+			}
+			done.await();
+		}
+		finally
+		{
+			builders.shutdownNow();
+			writers.shutdownNow();
+		}
+		long elapsed = System.nanoTime() - start;
+		
+		long peak = 0;
+		for( MemoryPoolMXBean pool : heap ) { peak += pool.getPeakUsage().getUsed(); }
+		
+		return new Report( results, elapsed, peak );
+	}
+	
+	
+	
+	private void _write( GdmlFile aExporter, Result aResult, Semaphore aHeld, CountDownLatch aDone )
+	{
+		try {
+			long t0 = System.nanoTime();
+			aExporter.write( aResult.mName );
+			aResult.mWriteNanos = System.nanoTime() - t0;
+			aResult.mBytes = new File( aResult.mName +".gdml" ).length();
+			if(mVerbose) System.out.println("exported \""+ aResult.mName +"\"");
+		} catch( Throwable e ) {
+			aResult.mError = e;
+			if(mVerbose) System.out.println("failed to write \""+ aResult.mName +"\": "+ e );
+		} finally {
+			VolumeExporterFactory.releaseGdmlExporter( aExporter );
+			aHeld.release();
+			aDone.countDown();
+		}
+	}
+	
+	
+	
+	private void _add( Callable<GeometryProvider> aProvider, String aProviderName, String aName ) throws IllegalArgumentException
+	{
+		if( aName.isEmpty() )
+			throw new IllegalArgumentException("empty String aName");
+		if( mNames.contains( aName ) )
+			throw new IllegalArgumentException("duplicate output name \""+ aName +"\"");
+		
+		mProviders.add( aProvider );
+		mProviderNames.add( aProviderName );
+		mNames.add( aName );
+	}
+	
+	
+	
+	private static GeometryProvider _newProvider( String aClassName ) throws ReflectiveOperationException
+	{
+		Class<?> type = Class.forName( aClassName );
+		if( !GeometryProvider.class.isAssignableFrom( type ) )
+			throw new ClassCastException( aClassName +" is not a GeometryProvider");
+		return (GeometryProvider) type.getConstructor().newInstance();
+	}
+	
+	
+	
+	private static ExecutorService _newPool( int aThreads, String aName )
+	{ // daemon threads, so that a failed batch does not keep the JVM alive
+		return Executors.newFixedThreadPool( aThreads, r -> {
+			Thread thread = new Thread( r, aName );
+			thread.setDaemon( true );
+			return thread;
+		});
+	}
+	
+	
+	
+	private static ExecutorService _newWriterPool( int aThreads )
+	{ // virtual threads from Java 21, found by reflection so that the library still runs on Java 8
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke( null );
+		} catch( ReflectiveOperationException e ) {
+			return _newPool( aThreads, "gdml-batch-writer" );
+		}
+	}
+	
+	
+	
+	/**
+	 * The outcome of one export. Times are in nanoseconds, and are zero for a step that
+	 * was not reached.
+	 */
+	public static final class Result
+	{
+		private final String mName;
+		private final String mProviderName;
+		private volatile long mBuildNanos;
+		private volatile long mWriteNanos;
+		private volatile long mBytes;
+		private volatile Throwable mError;
+		
+		
+		
+		Result( String aName, String aProviderName )
+		{
+			mName = aName;
+			mProviderName = aProviderName;
+		}
+		
+		
+		
+		public String getName() { return mName; }
+		public String getProviderName() { return mProviderName; }
+		public long getBuildNanos() { return mBuildNanos; }
+		public long getWriteNanos() { return mWriteNanos; }
+		public long getBytes() { return mBytes; }
+		public Throwable getError() { return mError; } // null if the export succeeded
+		public boolean isOk() { return mError == null; }
+	}
+	
+	
+	
+	/**
+	 * The results of run(), in the order the exports were added.
+	 */
+	public static final class Report
+	{
+		private final List<Result> mResults;
+		private final long mElapsedNanos;
+		private final long mPeakHeapBytes;
+		
+		
+		
+		Report( List<Result> aResults, long aElapsedNanos, long aPeakHeapBytes )
+		{
+			mResults = Collections.unmodifiableList( aResults );
+			mElapsedNanos = aElapsedNanos;
+			mPeakHeapBytes = aPeakHeapBytes;
+		}
+		
+		
+		
+		public List<Result> getResults()
+		{
+			return mResults;
+		}
+		
+		
+		
+		public List<Result> getFailures()
+		{
+			List<Result> failures = new ArrayList<>();
+			for( Result result : mResults ) { if( !result.isOk() ) failures.add( result ); }
+			return failures;
+		}
+		
+		
+		
+		public long getElapsedNanos()
+		{
+			return mElapsedNanos;
+		}
+		
+		
+		
+		public long getBytes()
+		{
+			long bytes = 0;
+			for( Result result : mResults ) { bytes += result.getBytes(); }
+			return bytes;
+		}
+		
+		
+		
+		// the sum of the peak use of each heap pool during the run, so at least the true peak
+		public long getPeakHeapBytes()
+		{
+			return mPeakHeapBytes;
+		}
+		
+		
+		
+		public void print( PrintStream aOut )
+		{
+			for( Result result : mResults )
+			{
+				aOut.printf("%-4s %9.1f ms build %9.1f ms write %9.1f MB  %s%n", result.isOk() ? "ok" : "FAIL",
+						result.getBuildNanos() / 1e6, result.getWriteNanos() / 1e6, result.getBytes() / 1e6, result.getName() );
+			}
+			
+			List<Result> failures = this.getFailures();
+			for( Result result : failures )
+			{
+				aOut.println("failed \""+ result.getName() +"\" ("+ result.getProviderName() +"):");
+				for( Throwable e = result.getError(); e != null; e = e.getCause() )
+				{
+					aOut.println("  "+ e );
+					StackTraceElement[] trace = e.getStackTrace();
+					if( trace.length > 0 ) aOut.println("    at "+ trace[0] );
+				}
+			}
+			
+			double seconds = mElapsedNanos / 1e9;
+			aOut.printf("%d exports, %d failed, %.2f s, %.1f files/s, %.1f MB/s, peak heap %.1f MB%n",
+					mResults.size(), failures.size(), seconds, ( mResults.size() - failures.size() ) / seconds,
+					this.getBytes() / 1e6 / seconds, mPeakHeapBytes / 1e6 );
+		}
+	}
+}
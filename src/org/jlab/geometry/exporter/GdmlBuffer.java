@@ -0,0 +1,204 @@
+package org.jlab.geometry.exporter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable UTF-8 byte buffer that GdmlWriter serializes into.
+ * It is kept by GdmlFile between exports, so its capacity is reused, up to RETAINED_CAPACITY.
+ * 
+ * The bytes are held in a direct ByteBuffer, so that they can be handed to a FileChannel
+ * without being copied into a temporary native buffer first.
+ * 
+ * While a sink is set, the buffer does not grow past SINK_CAPACITY: what it holds is written
+ * to the sink instead, so a document of any length can be written through it. position()
+ * counts every byte appended, size() only those still held.
+ */
+
+final class GdmlBuffer
+{
+	static final int RETAINED_CAPACITY = 1 << 20; // kept by trim(), larger buffers are given back
+	static final int SINK_CAPACITY = 1 << 22; // written to the sink when full
+	
+	private final int mInitialCapacity;
+	private ByteBuffer mBytes;
+	private int mSize;
+	private long mFlushed; // bytes written to the sink since clear()
+	private WritableByteChannel mSink;
+	
+	
+	
+	GdmlBuffer( int aCapacity )
+	{
+		mInitialCapacity = Math.max( 16, aCapacity );
+		mBytes = ByteBuffer.allocateDirect( mInitialCapacity );
+	}
+	
+	
+	
+	void clear()
+	{
+		mSize = 0;
+		mFlushed = 0;
+	}
+	
+	
+	
+	void trim()
+	{ // clears the buffer, and replaces it with a new one of the initial capacity if it has grown past RETAINED_CAPACITY
+		// the native memory of the old buffer is freed when it is garbage collected
+		this.clear();
+		if( mBytes.capacity() > RETAINED_CAPACITY )
+			mBytes = ByteBuffer.allocateDirect( mInitialCapacity );
+	}
+	
+	
+	
+	int size()
+	{ // bytes held
+		return mSize;
+	}
+	
+	
+	
+	long position()
+	{ // bytes appended since clear(), including those written to the sink
+		return mFlushed + mSize;
+	}
+	
+	
+	
+	void setSink( WritableByteChannel aSink )
+	{ // null to keep every byte in the buffer
+		mSink = aSink;
+	}
+	
+	
+	
+	void flush() throws IOException
+	{ // writes the bytes held to the sink
+		ByteBuffer view = this.contents();
+		while( view.hasRemaining() ) { mSink.write( view ); }
+		mFlushed += mSize;
+		mSize = 0;
+	}
+	
+	
+	
+	GdmlBuffer append( char aChar )
+	{ // ASCII only
+		if( mSize == mBytes.capacity() ) this._grow( 1 );
+		mBytes.put( mSize++, (byte) aChar );
+		return this;
+	}
+	
+	
+	
+	GdmlBuffer append( String aText )
+	{
+		int n = aText.length();
+		if( mSize + n > mBytes.capacity() ) this._grow( n );
+		ByteBuffer bytes = mBytes;
+		for( int i = 0; i < n; i++ )
+		{
+			char c = aText.charAt( i );
+			if( c >= 0x80 )
+				return this._appendUtf8( aText, i );
+			bytes.put( mSize++, (byte) c );
+		}
+		return this;
+	}
+	
+	
+	
+	GdmlBuffer append( double aValue )
+	{
+		return this.append( Double.toString( aValue ) );
+	}
+	
+	
+	
+	GdmlBuffer append( int aValue )
+	{
+		return this.append( Integer.toString( aValue ) );
+	}
+	
+	
+	
+	GdmlBuffer appendEscaped( String aText )
+	{ // for attribute values
+		for( int i = 0; i < aText.length(); i++ )
+		{
+			char c = aText.charAt( i );
+			switch( c )
+			{
+			case '&': this.append("&amp;"); break;
+			case '<': this.append("&lt;"); break;
+			case '>': this.append("&gt;"); break;
+			case '"': this.append("&quot;"); break;
+			case '\n': this.append("&#10;"); break;
+			case '\r': this.append("&#13;"); break;
+			case '\t': this.append("&#9;"); break;
+			default:
+				if( c < 0x80 )
+					this.append( c );
+				else
+				{ // copy up to the next character that needs escaping in one go
+					int end = i + 1;
+					while( end < aText.length() && aText.charAt( end ) >= 0x80 ) end++;
+					this._appendUtf8( aText.substring( i, end ), 0 );
+					i = end - 1;
+				}
+			}
+		}
+		return this;
+	}
+	
+	
+	
+	ByteBuffer contents()
+	{ // read-only view of the bytes appended so far
+		ByteBuffer view = mBytes.asReadOnlyBuffer();
+		view.limit( mSize );
+		view.position( 0 );
+		return view;
+	}
+	
+	
+	
+	private GdmlBuffer _appendUtf8( String aText, int aFrom )
+	{
+		byte[] bytes = aText.substring( aFrom ).getBytes( StandardCharsets.UTF_8 );
+		if( mSize + bytes.length > mBytes.capacity() ) this._grow( bytes.length );
+		ByteBuffer target = mBytes.duplicate();
+		target.position( mSize );
+		target.put( bytes );
+		mSize += bytes.length;
+		return this;
+	}
+	
+	
+	
+	private void _grow( int aNeeded )
+	{ // makes room for aNeeded more bytes, by flushing to the sink if there is one and the buffer is full
+		if( mSink != null && mSize > 0 && (long) mSize + aNeeded > SINK_CAPACITY )
+		{
+			try {
+				this.flush();
+			} catch( IOException e ) {
+				throw new UncheckedIOException( e ); // the append methods are called for every attribute, GdmlFile unwraps it
+			}
+			if( aNeeded <= mBytes.capacity() )
+				return;
+		}
+		
+		ByteBuffer bytes = ByteBuffer.allocateDirect( (int) Math.min( Integer.MAX_VALUE - 8, Math.max( 2L * mBytes.capacity(), (long) mSize + aNeeded ) ) );
+		ByteBuffer old = mBytes.duplicate();
+		old.position( 0 ).limit( mSize );
+		bytes.put( old );
+		mBytes = bytes;
+	}
+}
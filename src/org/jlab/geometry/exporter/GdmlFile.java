@@ -1,28 +1,15 @@
 package org.jlab.geometry.exporter;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
 import org.jlab.detector.units.SystemOfUnits.Length;
 import org.jlab.detector.volume.G4Box;
 import org.jlab.detector.volume.G4Tubs;
@@ -39,54 +26,64 @@ import eu.mihosoft.vrl.v3d.Vector3d;
  * @version 1.1.2
  */
 
-public class GdmlFile implements GdmlExporter
+public class GdmlFile implements GdmlExporter, GeometryListener
 {
-	private DocumentBuilderFactory mDocFactory;
-	private DocumentBuilder mDocBuilder;
-	private Document mDoc;
-	private Element mRoot, mDefine, mMaterials, mSolids, mStructure, mSetup;
+	static final String PRESET_DENSITY_UNIT = "g/cm3", PRESET_ATOM_UNIT = "g/mole";
+	
+	// contents of the file, only turned into XML by write()
+	private final GdmlModel mModel = new GdmlModel();
+	private final GdmlBuffer mBuffer = new GdmlBuffer( 1 << 16 );
+	private final double[] mSolidParams = new double[GdmlModel.SOLID_PARAMS];
+	private final GdmlIndex mIndex = new GdmlIndex();
+	private final GdmlParallelWriter mParallelWriter = new GdmlParallelWriter( mModel );
+	private final ArrayList<Geant4Basic> mPlacedVolumes = new ArrayList<>(); // by placement, for writeVariants()
 	
-	private boolean mVerbose = false;
+	private boolean mVerbose;
 	
-	private String mPositionLoc = "local", mRotationLoc = "local";
-	private String mDefaultMatRef = "mat_vacuum";
-	private String mDesiredAngleUnit = "deg";
-	private String mActualAngleUnit = "rad";
+	private String mPositionLoc, mRotationLoc;
+	private boolean mFlatten;
+	private boolean mWriteIndex;
+	private int mWriteThreads;
+	private boolean mCheckSchema;
+	private String mDefaultMatRef;
+	private String mDesiredAngleUnit;
+	private String mActualAngleUnit;
 	
 	
-	public GdmlFile() throws ParserConfigurationException
+	public GdmlFile()
 	{
-		mDocFactory = DocumentBuilderFactory.newInstance();
-		mDocBuilder = mDocFactory.newDocumentBuilder();
-		mDoc = mDocBuilder.newDocument();
-		
-		// / root
-		mRoot = mDoc.createElement("gdml");
-		mRoot.setAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
-		mRoot.setAttribute("xsi:noNameSpaceSchemaLocation", "http://cern.ch/service-spi/app/releases/GDML/Schema/gdml.xsd");
-		mDoc.appendChild( mRoot );
-		
-		// /define List
-		mDefine = mDoc.createElement("define");
-		mRoot.appendChild( mDefine );
-		
-		// /materials List
-		mMaterials = mDoc.createElement("materials");
-		mRoot.appendChild( mMaterials );
-		
-		// /solids List
-		mSolids = mDoc.createElement("solids");
-		mRoot.appendChild( mSolids );
-		
-		// /structures List
-		mStructure = mDoc.createElement("structure");
-		mRoot.appendChild( mStructure );
-		
-		// /setup Setup
-		mSetup = mDoc.createElement("setup");
-		mSetup.setAttribute("name", "default");
-		mSetup.setAttribute("version", "1.0");
-		mRoot.appendChild( mSetup );
+		this.reset();
+	}
+	
+	
+	
+	/**
+	 * Returns the exporter to the state of a newly constructed one, discarding all volumes
+	 * and restoring the default options, so that it can be used for another export.
+	 * The model arrays, name table, index and output buffer are kept and reused, unless an
+	 * export has grown them past GdmlModel.RETAINED_ROWS or GdmlBuffer.RETAINED_CAPACITY,
+	 * so that a pooled exporter does not hold on to the memory of its largest export.
+	 */
+	public void reset()
+	{
+		mVerbose = false;
+		mPositionLoc = "local";
+		mRotationLoc = "local";
+		mFlatten = false;
+		mWriteIndex = false;
+		mWriteThreads = 1;
+		mCheckSchema = false;
+		mDefaultMatRef = "mat_vacuum";
+		mDesiredAngleUnit = "deg";
+		mActualAngleUnit = "rad";
+		
+		int placed = mPlacedVolumes.size();
+		mModel.trim();
+		mBuffer.trim();
+		mIndex.trim();
+		mParallelWriter.clear();
+		mPlacedVolumes.clear();
+		if( placed > GdmlModel.RETAINED_ROWS ) mPlacedVolumes.trimToSize();
 	}
 	
 	
@@ -112,6 +109,41 @@ public class GdmlFile implements GdmlExporter
 	
 	
 	
+	// places every leaf volume directly in the top volume, at its position in the world frame
+	public void setFlatten( boolean aFlatten )
+	{
+		mFlatten = aFlatten;
+	}
+	
+	
+	
+	// also write "name.gdml.idx", with the byte range of every entry, for GdmlIndexedReader
+	public void setWriteIndex( boolean aWriteIndex )
+	{
+		mWriteIndex = aWriteIndex;
+	}
+	
+	
+	
+	// check every file against the bundled export schema as it is written, see ExportSchemaValidator
+	// a file that does not match is kept, and write() throws an ExportSchemaException
+	public void setCheckSchema( boolean aCheckSchema )
+	{
+		mCheckSchema = aCheckSchema;
+	}
+	
+	
+	
+	// number of threads write() serializes the file on, by default 1, which writes it on the calling thread
+	public void setWriteThreads( int aThreads ) throws IllegalArgumentException
+	{
+		if( aThreads < 1 )
+			throw new IllegalArgumentException("aThreads must be at least 1: "+ aThreads );
+		mWriteThreads = aThreads;
+	}
+	
+	
+	
 	public void setDesiredAngleUnit( String aAngleUnit ) throws IllegalArgumentException
 	{
 		switch( aAngleUnit )
@@ -151,28 +183,98 @@ public class GdmlFile implements GdmlExporter
 	
 	public void addTopVolume( Geant4Basic aTopVol )
 	{ // from VolumeExporter interface
+		this.addTopVolume( aTopVol, VolumeFilters.all() );
+	}
+	
+	
+	
+	public void addTopVolume( Geant4Basic aTopVol, VolumeFilter aFilter ) throws IllegalArgumentException
+	{ // exports only the volumes aFilter accepts
+		if( aTopVol == null )
+			throw new IllegalArgumentException("empty Geant4Basic");
+		if( aFilter == null )
+			throw new IllegalArgumentException("empty VolumeFilter");
 		
 		if(mVerbose) System.out.println("adding top volume with the following parameters:");
 		if(mVerbose) System.out.println("  position location=\t"+ mPositionLoc );
 		if(mVerbose) System.out.println("  rotation location=\t"+ mRotationLoc );
+		if(mVerbose) System.out.println("  flatten=\t\t"+ mFlatten );
 		if(mVerbose) System.out.println("  material=\t\t"+ mDefaultMatRef );
 		if(mVerbose) System.out.println("  actual angle unit=\t"+ mActualAngleUnit );
 		if(mVerbose) System.out.println("  desired angle unit=\t"+ mDesiredAngleUnit );
 		
-		this.addMaterialPreset( mDefaultMatRef );
-		this.addLogicalTree( aTopVol, mDefaultMatRef );
-		this.addPhysicalTree( aTopVol );
+		GeometryWalker walker = new GeometryWalker();
+		walker.setFilter( aFilter );
+		walker.setMaterial( mDefaultMatRef );
+		walker.setActualAngleUnit( mActualAngleUnit );
+		walker.setDesiredAngleUnit( mDesiredAngleUnit );
+		walker.setFlatten( mFlatten );
+		walker.addListener( this );
+		walker.walk( aTopVol );
+	}
+	
+	
+	
+	public void beginGeometry( Geant4Basic aTopVol )
+	{ // from GeometryListener interface
+	}
+	
+	
+	
+	public void onMaterial( String aMatRef )
+	{ // from GeometryListener interface
+		this.addMaterialPreset( aMatRef );
+	}
+	
+	
+	
+	public void onSolid( Geant4Basic aSolid )
+	{ // from GeometryListener interface
+		this.addSolid( aSolid );
+	}
+	
+	
+	
+	public void onVolume( Geant4Basic aSolid, String aMatRef )
+	{ // from GeometryListener interface
+		this.addLogicalVolume( aMatRef, aSolid );
+	}
+	
+	
+	
+	public void onPlacement( GeometryPlacement aPlacement ) throws NullPointerException, IllegalArgumentException
+	{ // from GeometryListener interface, a placement that cannot be added fails addTopVolume()
+		this.addPhysicalVolume( aPlacement );
+	}
+	
+	
+	
+	public void onWorld( Geant4Basic aTopVol )
+	{ // from GeometryListener interface
 		this.addWorld( aTopVol.getName() );
 	}
 	
 	
 	
-	public void writeFile( String aFilename )
+	public void endGeometry()
+	{ // from GeometryListener interface
+	}
+	
+	
+	
+	public int getVolumeCount()
 	{
+		return mModel.mVolumeCount;
+	}
+	
+	
+	
+	public void writeFile( String aFilename ) throws IllegalArgumentException, UncheckedIOException
+	{ // from VolumeExporter interface, which does not declare IOException
 		try {
 			this.write( aFilename );
-		} catch (IllegalArgumentException | TransformerException e) {
-			e.printStackTrace();
+		} catch( IOException e ) {
+			throw new UncheckedIOException( e );
 		}
 	}
 	
@@ -187,13 +289,7 @@ public class GdmlFile implements GdmlExporter
 		if( aUnits.isEmpty() )
 			throw new IllegalArgumentException("empty String aUnits");
 		
-		Element position = mDoc.createElement("position");
-		position.setAttribute("name", aName );
-		position.setAttribute("x", Double.toString( aPosition.x ) );
-		position.setAttribute("y", Double.toString( aPosition.y ) );
-		position.setAttribute("z", Double.toString( aPosition.z ) );
-		position.setAttribute("unit", aUnits );
-		mDefine.appendChild( position );
+		mModel.addDefine( GdmlModel.POSITION, aName, aPosition.x, aPosition.y, aPosition.z, aUnits );
 		
 		if(mVerbose) { System.out.println("added position \""+ aName +"\""); }
 	}
@@ -212,45 +308,34 @@ public class GdmlFile implements GdmlExporter
 			throw new IllegalArgumentException("empty String aUnits");
 		
 		
-		Element rotation = mDoc.createElement("rotation");
-		rotation.setAttribute("name", aName );
+		// stored as x, y, z
+		double x, y, z;
 		switch( aOrder )
 		{
 		case "xyz":
-			rotation.setAttribute("x", Double.toString( aRotation[0] ) );
-			rotation.setAttribute("y", Double.toString( aRotation[1] ) );
-			rotation.setAttribute("z", Double.toString( aRotation[2] ) );
+			x = aRotation[0]; y = aRotation[1]; z = aRotation[2];
 			break;
 			
 		case "yzx":
-			rotation.setAttribute("y", Double.toString( aRotation[0] ) );
-			rotation.setAttribute("z", Double.toString( aRotation[1] ) );
-			rotation.setAttribute("x", Double.toString( aRotation[2] ) );
+			y = aRotation[0]; z = aRotation[1]; x = aRotation[2];
 			break;
 			
 		case "zxy":
-			rotation.setAttribute("z", Double.toString( aRotation[0] ) );
-			rotation.setAttribute("x", Double.toString( aRotation[1] ) );
-			rotation.setAttribute("y", Double.toString( aRotation[2] ) );
+			z = aRotation[0]; x = aRotation[1]; y = aRotation[2];
 			break;
 			
 		case "zyx":
-			rotation.setAttribute("z", Double.toString( aRotation[0] ) );
-			rotation.setAttribute("y", Double.toString( aRotation[1] ) );
-			rotation.setAttribute("x", Double.toString( aRotation[2] ) );
+			z = aRotation[0]; y = aRotation[1]; x = aRotation[2];
 			break;
 			
 		case "yxz":
-			rotation.setAttribute("y", Double.toString( aRotation[0] ) );
-			rotation.setAttribute("x", Double.toString( aRotation[1] ) );
-			rotation.setAttribute("z", Double.toString( aRotation[2] ) );
+			y = aRotation[0]; x = aRotation[1]; z = aRotation[2];
 			break;
 			
 		default:
 			throw new IllegalArgumentException("unknown order \""+ aOrder +"\"");
 		}
-		rotation.setAttribute("unit", aUnits );
-		mDefine.appendChild( rotation );
+		mModel.addDefine( GdmlModel.ROTATION, aName, x, y, z, aUnits );
 		
 		if(mVerbose) { System.out.println("added position \""+ aName +"\""); }
 	}
@@ -273,22 +358,7 @@ public class GdmlFile implements GdmlExporter
 			throw new IllegalArgumentException("empty String aAtomUnit");
 		
 		// /materials/material
-		Element material = mDoc.createElement("material");
-		material.setAttribute("name", aName );
-		material.setAttribute("Z", Integer.toString( aZ ) );
-		mMaterials.appendChild( material );
-		
-		// /materials/material/density
-		Element density = mDoc.createElement("D");
-		density.setAttribute("unit", aDensityUnit );
-		density.setAttribute("value", Double.toString( aDensity ) );
-		material.appendChild( density );
-
-		// /materials/material/atom
-		Element atom = mDoc.createElement("atom");
-		atom.setAttribute("unit", aAtomUnit );
-		atom.setAttribute("value", Double.toString( aAtom ) );
-		material.appendChild( atom );
+		mModel.addMaterial( aName, aZ, aDensity, aDensityUnit, aAtom, aAtomUnit );
 		
 		if(mVerbose) { System.out.println("added material \""+ aName +"\""); }
 	}
@@ -300,15 +370,11 @@ public class GdmlFile implements GdmlExporter
 		if( aMatRef.isEmpty() )
 			throw new IllegalArgumentException("empty String aMatRef");
 		
-		switch( aMatRef )
-		{		
-		case "mat_vacuum":
-			this.addMaterial( aMatRef, 1, 0.0, "g/cm3", 0.0, "g/mole");
-			break;
-			
-		default:
+		double[] preset = materialPreset( aMatRef );
+		if( preset == null )
 			throw new IllegalArgumentException("material: \""+ aMatRef +"\"");
-		}
+		
+		this.addMaterial( aMatRef, (int) preset[0], preset[1], PRESET_DENSITY_UNIT, preset[2], PRESET_ATOM_UNIT );
 	}
 	
 	
@@ -320,14 +386,24 @@ public class GdmlFile implements GdmlExporter
 		if( aMatRef.isEmpty() )
 			throw new IllegalArgumentException("empty String aMatRef");
 		
+		double[] preset = materialPreset( aMatRef );
+		if( preset == null )
+			throw new IllegalArgumentException("material \""+ aMatRef +"\" does not exist");
+		
+		this.addMaterial( aName, (int) preset[0], preset[1], PRESET_DENSITY_UNIT, preset[2], PRESET_ATOM_UNIT );
+	}
+	
+	
+	
+	static double[] materialPreset( String aMatRef )
+	{ // Z, density and atomic mass of a preset, in PRESET_DENSITY_UNIT and PRESET_ATOM_UNIT, or null if there is none
 		switch( aMatRef )
-		{		
+		{
 		case "mat_vacuum":
-			this.addMaterial( aName, 1, 0.0, "g/cm3", 0.0, "g/mole");
-			break;
+			return new double[]{ 1, 0.0, 0.0 };
 			
 		default:
-			throw new IllegalArgumentException("material \""+ aMatRef +"\" does not exist");
+			return null;
 		}
 	}
 	
@@ -340,9 +416,9 @@ public class GdmlFile implements GdmlExporter
 		
 		// /solids/solid
 		String type = aSolid.getType().toLowerCase();
-		Element solid = mDoc.createElement( type );
-		String solRef = "sol_"+ aSolid.getName();
-		solid.setAttribute("name", solRef );
+		double[] params = mSolidParams;
+		String angleUnit = null;
+		int solType;
 		
 		// types defined here: http://gdml.web.cern.ch/GDML/doc/GDMLmanual.pdf
 		
@@ -351,9 +427,10 @@ public class GdmlFile implements GdmlExporter
 		case "box":
 			
 			G4Box aSolidBox = (G4Box) aSolid; 
-			solid.setAttribute("x", Double.toString( aSolidBox.getXHalfLength()*2.0 ) );
-			solid.setAttribute("y", Double.toString( aSolidBox.getYHalfLength()*2.0 ) );
-			solid.setAttribute("z", Double.toString( aSolidBox.getZHalfLength()*2.0 ) );
+			params[0] = aSolidBox.getXHalfLength()*2.0; // x
+			params[1] = aSolidBox.getYHalfLength()*2.0; // y
+			params[2] = aSolidBox.getZHalfLength()*2.0; // z
+			solType = GdmlModel.BOX;
 			break;
 			
 		/*case "eltube": // cylinder along Z axis
@@ -379,12 +456,13 @@ public class GdmlFile implements GdmlExporter
 		case "tube": // hollow tube segment
 			
 			G4Tubs aSolidTubs = (G4Tubs) aSolid;
-			solid.setAttribute("rmin", 	   Double.toString( aSolidTubs.getRMin() ) );
-			solid.setAttribute("rmax", 	   Double.toString( aSolidTubs.getRMax() ) );
-			solid.setAttribute("z",        Double.toString( aSolidTubs.getZHalfLength()*2.0 ) );
-			solid.setAttribute("startphi", Double.toString( aSolidTubs.getPhiStart() ) );
-			solid.setAttribute("deltaphi", Double.toString( aSolidTubs.getPhiDelta() ) );
-			solid.setAttribute("aunit", mDesiredAngleUnit );
+			params[0] = aSolidTubs.getRMin(); // rmin
+			params[1] = aSolidTubs.getRMax(); // rmax
+			params[2] = aSolidTubs.getZHalfLength()*2.0; // z
+			params[3] = aSolidTubs.getPhiStart(); // startphi
+			params[4] = aSolidTubs.getPhiDelta(); // deltaphi
+			angleUnit = mDesiredAngleUnit;
+			solType = GdmlModel.TUBE;
 			break;
 			
 		/*case "polyhedra": // pgon
@@ -399,10 +477,9 @@ public class GdmlFile implements GdmlExporter
 			throw new IllegalArgumentException("type: \""+ type +"\"");
 		}
 		
-		solid.setAttribute("lunit", Length.unit() );
-		mSolids.appendChild( solid );
+		mModel.addSolid( solType, aSolid.getName(), params, Length.unit(), angleUnit );
 		
-		if(mVerbose) { System.out.println("added solid \""+ solRef +"\""); }
+		if(mVerbose) { System.out.println("added solid \""+ "sol_"+ aSolid.getName() +"\""); }
 	}
 	
 	
@@ -419,25 +496,12 @@ public class GdmlFile implements GdmlExporter
 		String solName = aSolid.getName();
 		
 		// check that solid exists
-		String solRef = "sol_"+ solName;
-		Element sol = _findChildByName( mSolids, solRef );
-		if( sol == null )
-			throw new NullPointerException("could not find solid \""+ solRef +"\"");
-		
-		// /structures/volume Logical Volume
-		Element logVol = mDoc.createElement( "volume" );
-		logVol.setAttribute("name", "vol_"+ solName );
-		mStructure.appendChild( logVol );
-
-		// /structures/volume/materialref Reference to Material
-		Element materialref = mDoc.createElement("materialref");
-		materialref.setAttribute("ref", aMaterialRef );
-		logVol.appendChild( materialref );
-
-		// /structures/volume/solidref Reference to Solid
-		Element solidref = mDoc.createElement("solidref");
-		solidref.setAttribute("ref", solRef );
-		logVol.appendChild( solidref );
+		int sol = mModel.findSolid( solName );
+		if( sol < 0 )
+			throw new NullPointerException("could not find solid \""+ "sol_"+ solName +"\"");
+		
+		// /structures/volume Logical Volume, with /materialref and /solidref
+		mModel.addVolume( solName, sol, aMaterialRef );
 		
 		if(mVerbose) { System.out.println("added logical volume \""+ "vol_"+ solName +"\""); }
 	}
@@ -454,22 +518,14 @@ public class GdmlFile implements GdmlExporter
 		String solName = aSolid.getName();
 		
 		// check that solid exists
-		String solRef = "sol_"+ solName;
-		Element sol = _findChildByName( mSolids, solRef );
-		if( sol == null )
+		int sol = mModel.findSolid( solName );
+		if( sol < 0 )
 		{
-			throw new NullPointerException("could not find solid \""+ solRef +"\"");
+			throw new NullPointerException("could not find solid \""+ "sol_"+ solName +"\"");
 		}
 		
-		// /structures/volume Logical Volume
-		Element logVol = mDoc.createElement( "volume" );
-		logVol.setAttribute("name", "vol_"+ solName );
-		mStructure.appendChild( logVol );
-
-		// /structures/volume/solidref Reference to Solid
-		Element solidref = mDoc.createElement("solidref");
-		solidref.setAttribute("ref", solRef );
-		logVol.appendChild( solidref );
+		// /structures/volume Logical Volume, with /solidref only
+		mModel.addVolume( solName, sol, null );
 		
 		if(mVerbose) { System.out.println("added logical volume \""+ "vol_"+ solName +"\""); }
 	}
@@ -506,65 +562,61 @@ public class GdmlFile implements GdmlExporter
 	
 	public void addPhysicalVolume( String aParentName, Geant4Basic aSolid ) throws NullPointerException, IllegalArgumentException
 	{
-		// Physical Volumes always have a position and a rotation in space, but this can be defined from a global or local reference 
 		if( aParentName.isEmpty() )
 			throw new IllegalArgumentException("empty String aParentName");
 		if( aSolid == null)
 			throw new IllegalArgumentException("empty Geant4Basic");
 		
+		this.addPhysicalVolume( new GeometryPlacement( aParentName, aSolid, mActualAngleUnit, mDesiredAngleUnit ) );
+	}
+	
+	
+	
+	public void addPhysicalVolume( GeometryPlacement aPlacement ) throws NullPointerException, IllegalArgumentException
+	{
+		// Physical Volumes always have a position and a rotation in space, but this can be defined from a global or local reference 
+		if( aPlacement == null )
+			throw new IllegalArgumentException("empty GeometryPlacement");
+		
+		String aParentName = aPlacement.getParentName();
+		Geant4Basic aSolid = aPlacement.getVolume();
+		
 		// physical volumes are rendered, and need to be added as a child to a logical volume
 		// physvols can be given a direct position, or a positionref that uses a global position in the define block, same with rotations
 
 		// /structures/volume/physvol Physical Volume
-		Element physvol = mDoc.createElement("physvol");
 		// need to add physvol to a logvol given by parent ref
-		String parentLogVolRef = "vol_"+ aParentName;
 		// check that parent logical volume exists
-		Element parentLogVol = _findChildByName( mStructure, parentLogVolRef );
-		if( parentLogVol == null ) {
-			throw new NullPointerException("could not find logical volume \""+ parentLogVolRef +"\"");
+		int parentLogVol = mModel.findVolume( aParentName );
+		if( parentLogVol < 0 ) {
+			throw new NullPointerException("could not find logical volume \""+ "vol_"+ aParentName +"\"");
 		}
-		parentLogVol.appendChild( physvol );
 
 		// /structures/volume/physvol/volumeref Reference to Volume
-		Element volumeref = mDoc.createElement("volumeref");
-		String selfLogVolRef = "vol_"+ aSolid.getName();
 		// check that self logical volume exists
-		Element selfLogVol = _findChildByName( mStructure, selfLogVolRef );
-		if( selfLogVol == null )
+		int selfLogVol = mModel.findVolume( aSolid.getName() );
+		if( selfLogVol < 0 )
 		{
-			throw new NullPointerException("could not find logical volume \""+ selfLogVolRef +"\"");
+			throw new NullPointerException("could not find logical volume \""+ "vol_"+ aSolid.getName() +"\"");
 		}
-		volumeref.setAttribute("ref", selfLogVolRef );
-		physvol.appendChild( volumeref );
+		int physvol = mModel.addPlacement( parentLogVol, selfLogVol );
+		mPlacedVolumes.add( aSolid );
 		
 		// /structure/volume/physvol/position
-		Vector3d pos = aSolid.getLocalPosition();
+		Vector3d pos = aPlacement.getPosition();
 		
 		// no need to write a position tag if nothing moves
-		boolean posAllZero = ( pos.x == 0.0 && pos.y == 0.0 && pos.z == 0.0 );
-		
-		if( !posAllZero )
+		if( aPlacement.hasPosition() )
 		{
 			switch( mPositionLoc )
 			{
 			case "local":
-				Element position = mDoc.createElement( "position" );
-				//position.setAttribute( "name", "pos_"+ aSolid.getName() +"_in_"+ aParentName );
-				position.setAttribute( "name", "pos_"+ aSolid.getName() );
-				position.setAttribute("x", Double.toString( pos.x ) );
-				position.setAttribute("y", Double.toString( pos.y ) );
-				position.setAttribute("z", Double.toString( pos.z ) );
-				position.setAttribute("unit", Length.unit() );
-				physvol.appendChild( position );
+				mModel.setPosition( physvol, GdmlModel.INLINE, pos.x, pos.y, pos.z, Length.unit() );
 				break;
 				
 			case "global":
-				Element positionRef = mDoc.createElement( "positionref" );
-				String positionName = "pos_"+ aSolid.getName() +"_in_"+ aParentName;
-				this.addPosition( positionName, aSolid.getLocalPosition(), Length.unit() );
-				positionRef.setAttribute("ref", positionName );
-				physvol.appendChild( positionRef );
+				mModel.setPosition( physvol, GdmlModel.REF, pos.x, pos.y, pos.z, Length.unit() );
+				this.addPosition( mModel.positionName( physvol ), pos, Length.unit() );
 				break;
 				
 			default:
@@ -573,46 +625,19 @@ public class GdmlFile implements GdmlExporter
 		}
 		
 		// /structure/volume/physvol/rotation
-		double[] rot = aSolid.getLocalRotation();
-		boolean rotAllZero = true;
-		
-		for( int i = 0; i < 3; i++) {
-			if( rot[i] != 0.0 ) {
-				rotAllZero = false;
-				break;
-			}
-		}
-		
-		if( !rotAllZero ) // no need to write a blank line that doesn't do anything
+		if( aPlacement.hasRotation() ) // no need to write a blank line that doesn't do anything
 		{
-			double[] solRotation = aSolid.getLocalRotation();
-			if( mDesiredAngleUnit == "deg" && mActualAngleUnit == "rad" )
-			{
-				for( int i = 0; i < 3; i++) { solRotation[i] = Math.toDegrees( solRotation[i] ); }
-			}
-			else if( mDesiredAngleUnit == "rad" && mActualAngleUnit == "deg" )
-			{
-				for( int i = 0; i < 3; i++) { solRotation[i] = Math.toRadians( solRotation[i] ); }
-			}
+			double[] solRotation = aPlacement.getRotation( mDesiredAngleUnit );
 			
 			switch( mRotationLoc )
 			{
 			case "local":
-				Element rotation = mDoc.createElement( "rotation" );
-				rotation.setAttribute( "name", "rot_"+ aSolid.getName() +"_in_"+ aParentName );
-				rotation.setAttribute("x", Double.toString( solRotation[0] ) );
-				rotation.setAttribute("y", Double.toString( solRotation[1] ) );
-				rotation.setAttribute("z", Double.toString( solRotation[2] ) );
-				rotation.setAttribute("unit", mDesiredAngleUnit );
-				physvol.appendChild( rotation );
+				mModel.setRotation( physvol, GdmlModel.INLINE, solRotation[0], solRotation[1], solRotation[2], mDesiredAngleUnit );
 				break;
 				
 			case "global":
-				Element rotationRef = mDoc.createElement( "rotationref" );
-				String rotationName = "rot_"+ aSolid.getName() +"_in_"+ aParentName;
-				this.addRotation( rotationName, solRotation, aSolid.getLocalRotationOrder(), mDesiredAngleUnit );
-				rotationRef.setAttribute("ref", rotationName );
-				physvol.appendChild( rotationRef );
+				mModel.setRotation( physvol, GdmlModel.REF, solRotation[0], solRotation[1], solRotation[2], mDesiredAngleUnit );
+				this.addRotation( mModel.rotationName( physvol ), solRotation, aPlacement.getRotationOrder(), mDesiredAngleUnit );
 				break;
 				
 			default:
@@ -620,12 +645,12 @@ public class GdmlFile implements GdmlExporter
 			}
 		}
 		
-		if(mVerbose) { System.out.println("added physical volume \""+ selfLogVolRef +"\" to logical volume \""+ parentLogVolRef +"\""); }
+		if(mVerbose) { System.out.println("added physical volume \""+ "vol_"+ aSolid.getName() +"\" to logical volume \""+ "vol_"+ aParentName +"\""); }
 	}
 	
 
 	
-	public void addPhysicalTree( Geant4Basic aNode ) 
+	public void addPhysicalTree( Geant4Basic aNode ) throws NullPointerException, IllegalArgumentException
 	{				
 		List<Geant4Basic> children = aNode.getChildren();
 		for( int i = 0; i < children.size(); i++ )
@@ -643,17 +668,7 @@ public class GdmlFile implements GdmlExporter
 			}
 			
 			if( addPhysVol )
-			{
-				try 
-				{
-					this.addPhysicalVolume( aNode.getName(), child ); // always "rad" for Geant4Basic
-					
-				} catch( NullPointerException e ) {
-					e.printStackTrace();
-				} catch( IllegalArgumentException e ) {
-					e.printStackTrace();
-				}
-			}
+				this.addPhysicalVolume( aNode.getName(), child ); // always "rad" for Geant4Basic
 			
 			this.addPhysicalTree( child ); // tail recursive?
 		}
@@ -667,22 +682,20 @@ public class GdmlFile implements GdmlExporter
 			throw new IllegalArgumentException("empty String");
 
 		// /setup/world World
-		Element world = mDoc.createElement("world");
 		String logVolRef = "vol_"+ aLogVolName;
 		// check that logical volume exists
-		Element LogVol = _findChildByName( mStructure, logVolRef );
-		if( LogVol == null ) {
+		int LogVol = mModel.findVolume( aLogVolName );
+		if( LogVol < 0 ) {
 			throw new NullPointerException("could not find logical volume \""+ logVolRef +"\"");
 		}
-		world.setAttribute("ref", logVolRef );
-		mSetup.appendChild( world );
+		mModel.addWorld( LogVol );
 		
 		if(mVerbose) { System.out.println("added world from logical volume \""+ logVolRef +"\""); }
 	}
 	
 	
 	
-	public void write( String aName ) throws TransformerConfigurationException, TransformerException, IllegalArgumentException 
+	public void write( String aName ) throws IOException, IllegalArgumentException, ExportSchemaException
 	{		
 		if( aName.isEmpty() )
 			throw new IllegalArgumentException("empty String");
@@ -690,18 +703,74 @@ public class GdmlFile implements GdmlExporter
 		String filename = aName +".gdml";
 		
 		// write contents to gdml file
-		TransformerFactory transformerFactory = TransformerFactory.newInstance();
-		Transformer transformer = transformerFactory.newTransformer();
-		DOMSource source = new DOMSource(mDoc);
-
-		StreamResult result = new StreamResult( new File( filename ) );
-		//StreamResult result = new StreamResult( System.out );
-
-		transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-		transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-		transformer.transform(source, result);
+		mIndex.clear();
+		long length;
+		boolean checkFile = false;
+		try( FileChannel out = FileChannel.open( Paths.get( filename ), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) )
+		{
+			if( mWriteThreads > 1 )
+			{
+				// checked while it is written
+				length = mParallelWriter.write( out, mWriteThreads, mWriteIndex ? mIndex : null, mCheckSchema ? filename : null );
+			}
+			else
+			{
+				// written out whenever the buffer holds GdmlBuffer.SINK_CAPACITY
+				mBuffer.clear();
+				mBuffer.setSink( out );
+				try {
+					GdmlWriter writer = new GdmlWriter( mModel );
+					if( mWriteIndex ) writer.setIndex( mIndex );
+					writer.write( mBuffer );
+					length = mBuffer.position();
+					
+					// from the buffer if it holds the whole file, otherwise from the file once it is closed
+					checkFile = mCheckSchema && length > mBuffer.size();
+					if( mCheckSchema && !checkFile ) ExportSchemaValidator.check( new ByteBuffer[]{ mBuffer.contents() }, filename );
+					mBuffer.flush();
+				} catch( UncheckedIOException e ) {
+					throw e.getCause();
+				} finally {
+					mBuffer.setSink( null );
+				}
+			}
+		}
+		if( checkFile ) ExportSchemaValidator.check( new File( filename ) );
 
-		System.out.println("wrote file \""+ filename +"\"");
+		if(mVerbose) System.out.println("wrote file \""+ filename +"\""+ ( mCheckSchema ? ", schema checked" : "" ) );
+		
+		if( mWriteIndex )
+		{
+			mIndex.setFileLength( length );
+			mIndex.write( new File( filename + GdmlIndex.SUFFIX ) );
+			mIndex.clear();
+			
+			if(mVerbose) System.out.println("wrote file \""+ filename + GdmlIndex.SUFFIX +"\"");
+		}
+	}
+	
+	
+	
+	/**
+	 * Writes one file per perturbation set, "aName_0.gdml", "aName_1.gdml" and so on, each
+	 * the same as a full export of the added geometry with those changes applied.
+	 * 
+	 * The geometry is serialized once, and only the volumes that hold a perturbed placement,
+	 * with their define entries, are written again for each variant. The variants are written
+	 * on the threads given by setWriteThreads(), and checked against the export schema if setCheckSchema(true) is set.
+	 * The volumes must not have been changed since they were added.
+	 */
+	public void writeVariants( String aName, List<GeometryPerturbation> aVariants ) throws IOException, IllegalArgumentException, NullPointerException
+	{
+		if( aName.isEmpty() )
+			throw new IllegalArgumentException("empty String");
+		if( aVariants == null )
+			throw new IllegalArgumentException("empty List<GeometryPerturbation>");
+		if( mFlatten )
+			throw new IllegalArgumentException("variants cannot be written for a flattened tree");
+		
+		GdmlVariantWriter writer = new GdmlVariantWriter( mModel, mPlacedVolumes, mPositionLoc, mRotationLoc, mActualAngleUnit, mDesiredAngleUnit, mBuffer );
+		writer.write( aName, aVariants, mWriteThreads, mCheckSchema, mVerbose );
 	}
 	
 	
@@ -727,67 +796,59 @@ public class GdmlFile implements GdmlExporter
 		if( aReplaceValue.isEmpty() )
 			throw new IllegalArgumentException("empty String aReplaceValue");
 		
-		//if( mVerbose ) System.out.printf("\"%s\" \"%s\" \"%s\" \"%s\" \"%s\" \"%s\" \"%s\"\n", aParentName, aSearchNode, aSearchAttribute, aSearchValue, aReplaceNode, aReplaceAttribute, aReplaceValue );
-		
-		//if( aReplaceValue.contains( aSearchValue ) )
-			//throw new IllegalArgumentException("aReplaceValue=\""+aReplaceValue+"\" must not contain aSearchValue=\""+aSearchValue+"\"");
-		
-		Element parent = null;
 		switch( aParentName )
 		{
 		case "structure":
-			parent = mStructure;
 			break;
 		default:
 			throw new IllegalArgumentException("unknown parent: "+aParentName );
 		}
 		
-		// using XPath
-		NodeList matchVolNodeList = _findChildrenByNameContains( parent, "name", aSearchValue );
+		// the model only has attributes that are references, so these are the only combinations that can be replaced
+		if( !aSearchNode.equals("volume") || !aSearchAttribute.equals("name") )
+			throw new IllegalArgumentException("unsupported search: <"+ aSearchNode +" "+ aSearchAttribute +">");
+		if( !( aReplaceNode.equals("materialref") || aReplaceNode.equals("solidref") ) || !aReplaceAttribute.equals("ref") )
+			throw new IllegalArgumentException("unsupported replacement: <"+ aReplaceNode +" "+ aReplaceAttribute +">");
+		
+		// search for substring in the names of all logical volumes
+		List<Integer> matchVols = new ArrayList<>();
+		for( int v = 0; v < mModel.mVolumeCount; v++ )
+		{
+			if( ( "vol_"+ mModel.name( mModel.mVolumeName[v] ) ).contains( aSearchValue ) )
+				matchVols.add( v );
+		}
 		
-		if( matchVolNodeList.getLength() == 0 )
+		if( matchVols.size() == 0 )
 		{
 			if( mVerbose ) System.out.println("replaceAttribute() no matches for \""+aSearchValue+"\"");
+			return;
 		}
-		else
+		
+		if( mVerbose ) System.out.println("replaceAttribute() matches for \""+ aSearchValue +"\": "+ matchVols.size() );
+		
+		for( int v : matchVols )
 		{
-			if( mVerbose ) System.out.println("replaceAttribute() matches for \""+ aSearchValue +"\": "+ matchVolNodeList.getLength() );
+			String volName = "vol_"+ mModel.name( mModel.mVolumeName[v] );
 			
-			for( int i = 0; i < matchVolNodeList.getLength(); i++ )
+			if( aReplaceNode.equals("materialref") )
 			{
-				String volName = matchVolNodeList.item(i).getAttributes().getNamedItem( aSearchAttribute ).getNodeValue();
-				//if( mVerbose ) System.out.printf("i%d \"%s\"\n", i, volName );
-				
-				NodeList volChildNodeList = matchVolNodeList.item(i).getChildNodes();
-				//if( mVerbose ) System.out.printf("found %d children\n", volChildNodeList.getLength() );
-				
-				if( volChildNodeList.getLength() == 0 )
+				if( mModel.mVolumeMaterial[v] < 0 )
 				{
-					if( mVerbose ) System.out.println("ignored: "+ volName +": has no nodes" );
-				}
-				else
-				{
-					int matRefIndex = -1;
-					for( int j = 0; j < volChildNodeList.getLength(); j++ )
-					{
-						matRefIndex = j;
-						//if( mVerbose ) System.out.printf(" j%d \"%s\"\n", j, volChildNodeList.item(j).getNodeName() );
-						if( volChildNodeList.item(j).getNodeName() == aReplaceNode ) break;
-					}
-					Node matRefNode = volChildNodeList.item( matRefIndex ).getAttributes().getNamedItem( aReplaceAttribute );
-					
-					if( matRefNode == null )
-					{
-						if( mVerbose ) System.out.println("skipped: "+ volName +": does not have node "+ aReplaceNode );
-					}
-					else
-					{
-						String oldMatRef = matRefNode.getNodeValue();
-						matRefNode.setNodeValue( aReplaceValue );
-						String newMatRef = matRefNode.getNodeValue();
-						if( mVerbose ) System.out.println("changed: "+ volName +": "+ oldMatRef +" -> "+ newMatRef );
-					}
+					if( mVerbose ) System.out.println("skipped: "+ volName +": does not have node "+ aReplaceNode );
+					continue;
 				}
+				String oldMatRef = mModel.name( mModel.mVolumeMaterial[v] );
+				mModel.mVolumeMaterial[v] = mModel.mNames.intern( aReplaceValue );
+				if( mVerbose ) System.out.println("changed: "+ volName +": "+ oldMatRef +" -> "+ aReplaceValue );
+			}
+			else
+			{
+				int sol = aReplaceValue.startsWith("sol_") ? mModel.findSolid( aReplaceValue.substring( 4 ) ) : -1;
+				if( sol < 0 )
+					throw new NullPointerException("could not find solid \""+ aReplaceValue +"\"");
+				String oldSolRef = "sol_"+ mModel.name( mModel.mSolidName[mModel.mVolumeSolid[v]] );
+				mModel.mVolumeSolid[v] = sol;
+				if( mVerbose ) System.out.println("changed: "+ volName +": "+ oldSolRef +" -> "+ aReplaceValue );
 			}
 		}
 	}
@@ -798,71 +859,4 @@ public class GdmlFile implements GdmlExporter
 	{
 		replaceAttribute( "structure", "volume", "name", aVolName, "materialref", "ref", aMatRef );
 	}
-	
-	
-	
-	private Element _findChildByName( Element aParent, String aName ) throws IllegalArgumentException
-	{
-		if( aName.isEmpty() )
-			throw new IllegalArgumentException("empty String");
-		if( aParent == null )
-			throw new IllegalArgumentException("empty Element");
-		
-		NodeList childNodes = aParent.getChildNodes();
-		//System.out.println("GdmlFile: _findChildByName(): begin search in parent <"+ aParent.getNodeName() +"> for child with name=\""+ aName +"\">");
-		
-		for( int i = 0; i < childNodes.getLength(); i++)
-		{
-			Element child = (Element) childNodes.item( i );
-			String childName = child.getAttribute("name");
-			
-			//Node childNode = childNodes.item( i );
-			//String childNodeName = childNode.getAttributes().getNamedItem("name").getNodeValue();
-			
-			//System.out.println(" checking child <"+ child.getNodeName() +" name=\""+ childName +"\">");
-			//System.out.println("childName="+ childName);
-			//System.out.println("aName="+ aName);
-			
-			if( childName.equals(aName) ) // don't use childName == aName, which checks references (pointers) of the objects, and not their logical value!
-			{
-				//System.out.println(" found child");
-				return child;
-			}
-		}
-		//System.out.println(" no child found");
-		return null;
-	}
-	
-	
-	
-	private NodeList _findChildrenByNameContains(
-			Element aParent,
-			String aSearchNodeAttribute,
-			String aSearchNodeAttributeSubName
-			) throws IllegalArgumentException
-	{		
-		if( aParent == null )
-			throw new IllegalArgumentException("empty Element");
-		if( aSearchNodeAttribute.isEmpty() )
-			throw new IllegalArgumentException("empty String aSearchNodeAttribute");
-		if( aSearchNodeAttributeSubName.isEmpty() )
-			throw new IllegalArgumentException("empty String aSearchNodeAttributeSubName");
-		
-		XPath xpath = XPathFactory.newInstance().newXPath();
-		
-		try
-		{
-			String xPathSearch = "//*[contains(@"+aSearchNodeAttribute+",'"+aSearchNodeAttributeSubName+"')]"; // search for substring in current node tree (that includes all sub nodes!)
-			//System.out.println("XPathSearch=\""+ xPathSearch +"\"");
-			NodeList matchVolNodeList = (NodeList) xpath.evaluate( xPathSearch, aParent, XPathConstants.NODESET );
-			//if( mVerbose ) System.out.println("XPath search in <"+aParent.getTagName()+"> for elements with attribute \""+aSearchNodeAttribute+"\" containing \""+aSearchNodeAttributeSubName+"\" matched "+matchVolNodeList.getLength()+" nodes");
-			return matchVolNodeList;
-		}
-		catch( XPathExpressionException e )
-		{
-			e.printStackTrace();
-		}
-		
-		return null;
-	}
 }
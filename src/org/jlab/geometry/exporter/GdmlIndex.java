@@ -0,0 +1,230 @@
+package org.jlab.geometry.exporter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <h1> GDML Index </h1>
+ * 
+ * Byte offset and length of every define entry, material, solid and logical volume in a
+ * GDML file, plus the bounding box of each volume's solid in its own frame and length unit.
+ * 
+ * GdmlFile writes it next to the GDML file as "name.gdml.idx" when setWriteIndex(true) is set,
+ * and GdmlIndexedReader uses it to parse single volumes without reading the whole file.
+ * 
+ * @see GdmlIndexedReader
+ */
+
+public final class GdmlIndex
+{
+	public static final byte DEFINE = 0, MATERIAL = 1, SOLID = 2, VOLUME = 3;
+	
+	static final String SUFFIX = ".idx";
+	private static final long MAGIC = 0x47444D4C49445831L; // "GDMLIDX1"
+	
+	private int mCount;
+	private byte[] mKind = new byte[64];
+	private String[] mName = new String[64];
+	private long[] mOffset = new long[64];
+	private int[] mLength = new int[64];
+	private float[] mBox = new float[64*6];
+	private long mFileLength;
+	
+	private Map<String, Integer>[] mLookup; // per kind, built on first find()
+	
+	
+	
+	GdmlIndex() {}
+	
+	
+	
+	void clear()
+	{
+		Arrays.fill( mName, 0, mCount, null );
+		mCount = 0;
+		mFileLength = 0;
+		mLookup = null;
+	}
+	
+	
+	
+	void trim()
+	{ // clears the index, and gives back arrays that have grown past GdmlModel.RETAINED_ROWS
+		this.clear();
+		if( mKind.length > GdmlModel.RETAINED_ROWS )
+		{
+			mKind = new byte[64];
+			mName = new String[64];
+			mOffset = new long[64];
+			mLength = new int[64];
+			mBox = new float[64*6];
+		}
+	}
+	
+	
+	
+	void add( byte aKind, String aName, long aOffset, int aLength )
+	{
+		int i = mCount++;
+		if( i == mKind.length )
+		{
+			int n = i * 2;
+			mKind = Arrays.copyOf( mKind, n );
+			mName = Arrays.copyOf( mName, n );
+			mOffset = Arrays.copyOf( mOffset, n );
+			mLength = Arrays.copyOf( mLength, n );
+			mBox = Arrays.copyOf( mBox, n*6 );
+		}
+		mKind[i] = aKind;
+		mName[i] = aName;
+		mOffset[i] = aOffset;
+		mLength[i] = aLength;
+		mLookup = null;
+	}
+	
+	
+	
+	void addVolume( String aName, long aOffset, int aLength, double aHalfX, double aHalfY, double aHalfZ )
+	{
+		this.add( VOLUME, aName, aOffset, aLength );
+		int o = ( mCount - 1 ) * 6;
+		// rounded outwards, so that the float box always contains the solid
+		mBox[o]   = Math.nextDown( (float) -aHalfX );
+		mBox[o+1] = Math.nextDown( (float) -aHalfY );
+		mBox[o+2] = Math.nextDown( (float) -aHalfZ );
+		mBox[o+3] = Math.nextUp( (float) aHalfX );
+		mBox[o+4] = Math.nextUp( (float) aHalfY );
+		mBox[o+5] = Math.nextUp( (float) aHalfZ );
+	}
+	
+	
+	
+	void append( GdmlIndex aChunk, long aBase, long aOpenStart )
+	{ // entries of a chunk that was written aBase bytes into the file
+		for( int i = 0; i < aChunk.mCount; i++ )
+		{
+			long offset = aChunk.mOffset[i] + aBase;
+			int length = aChunk.mLength[i];
+			if( aChunk.mOffset[i] < 0 )
+			{ // a volume that was opened by an earlier chunk, at aOpenStart
+				offset = aOpenStart;
+				length = (int)( aBase + aChunk.mLength[i] - aOpenStart );
+			}
+			this.add( aChunk.mKind[i], aChunk.mName[i], offset, length );
+			System.arraycopy( aChunk.mBox, i*6, mBox, ( mCount - 1 )*6, 6 );
+		}
+	}
+	
+	
+	
+	void setFileLength( long aFileLength )
+	{
+		mFileLength = aFileLength;
+	}
+	
+	
+	
+	public long getFileLength()
+	{ // length of the GDML file the index was written for
+		return mFileLength;
+	}
+	
+	
+	
+	public int size()
+	{
+		return mCount;
+	}
+	
+	
+	
+	public byte getKind( int aEntry ) { return mKind[aEntry]; }
+	public String getName( int aEntry ) { return mName[aEntry]; }
+	public long getOffset( int aEntry ) { return mOffset[aEntry]; }
+	public int getLength( int aEntry ) { return mLength[aEntry]; }
+	
+	
+	
+	public float[] getBoundingBox( int aEntry ) throws IllegalArgumentException
+	{ // xmin, ymin, zmin, xmax, ymax, zmax
+		if( mKind[aEntry] != VOLUME )
+			throw new IllegalArgumentException("not a volume: \""+ mName[aEntry] +"\"");
+		return Arrays.copyOfRange( mBox, aEntry*6, aEntry*6 + 6 );
+	}
+	
+	
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public int find( byte aKind, String aName )
+	{ // entry number, or -1
+		if( mLookup == null )
+		{
+			Map<String, Integer>[] lookup = new Map[VOLUME + 1];
+			for( int k = 0; k < lookup.length; k++ ) { lookup[k] = new HashMap<>(); }
+			for( int i = 0; i < mCount; i++ ) { lookup[mKind[i]].putIfAbsent( mName[i], i ); }
+			mLookup = lookup;
+		}
+		Integer entry = mLookup[aKind].get( aName );
+		return entry == null ? -1 : entry;
+	}
+	
+	
+	
+	void write( File aFile ) throws IOException
+	{
+		try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( aFile ), 1 << 16 ) ) )
+		{
+			out.writeLong( MAGIC );
+			out.writeLong( mFileLength );
+			out.writeInt( mCount );
+			for( int i = 0; i < mCount; i++ )
+			{
+				out.writeByte( mKind[i] );
+				out.writeUTF( mName[i] );
+				out.writeLong( mOffset[i] );
+				out.writeInt( mLength[i] );
+				if( mKind[i] == VOLUME )
+				{
+					for( int j = 0; j < 6; j++ ) { out.writeFloat( mBox[i*6+j] ); }
+				}
+			}
+		}
+	}
+	
+	
+	
+	public static GdmlIndex read( File aFile ) throws IOException
+	{
+		try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( aFile ), 1 << 16 ) ) )
+		{
+			if( in.readLong() != MAGIC )
+				throw new IOException("not a GDML index: \""+ aFile +"\"");
+			
+			GdmlIndex index = new GdmlIndex();
+			index.mFileLength = in.readLong();
+			int count = in.readInt();
+			for( int i = 0; i < count; i++ )
+			{
+				byte kind = in.readByte();
+				String name = in.readUTF();
+				long offset = in.readLong();
+				int length = in.readInt();
+				index.add( kind, name, offset, length );
+				if( kind == VOLUME )
+				{
+					for( int j = 0; j < 6; j++ ) { index.mBox[i*6+j] = in.readFloat(); }
+				}
+			}
+			return index;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package org.jlab.geometry.exporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * <h1> Indexed GDML Reader </h1>
+ * 
+ * Reads single volumes out of a large GDML file, using the "name.gdml.idx" index written
+ * by GdmlFile with setWriteIndex(true).
+ * 
+ * readVolume() seeks to the requested logical volume, and to the solids, materials, defines
+ * and daughter volumes it refers to, and parses only those entries. The result is a small,
+ * self-contained GDML document with the requested volume as its world.
+ * 
+ * @see GdmlIndex
+ */
+
+public class GdmlIndexedReader implements Closeable
+{
+	private final FileChannel mChannel;
+	private final GdmlIndex mIndex;
+	private final DocumentBuilder mDocBuilder;
+	
+	
+	
+	public GdmlIndexedReader( File aGdmlFile ) throws IOException
+	{
+		mIndex = GdmlIndex.read( new File( aGdmlFile.getPath() + GdmlIndex.SUFFIX ) );
+		mChannel = FileChannel.open( aGdmlFile.toPath(), StandardOpenOption.READ );
+		
+		if( mChannel.size() != mIndex.getFileLength() )
+		{
+			mChannel.close();
+			throw new IOException("index does not match \""+ aGdmlFile +"\", it was written for a file of "+ mIndex.getFileLength() +" bytes");
+		}
+		
+		try {
+			mDocBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		} catch( ParserConfigurationException e ) {
+			mChannel.close();
+			throw new IOException("could not create XML parser", e );
+		}
+	}
+	
+	
+	
+	public GdmlIndex getIndex()
+	{
+		return mIndex;
+	}
+	
+	
+	
+	public float[] getBoundingBox( String aVolName ) throws IllegalArgumentException
+	{ // xmin, ymin, zmin, xmax, ymax, zmax of the volume's solid, in its own frame
+		return mIndex.getBoundingBox( this._find( GdmlIndex.VOLUME, aVolName ) );
+	}
+	
+	
+	
+	// raw text of one entry, as it appears in the file
+	public String readText( byte aKind, String aName ) throws IOException, IllegalArgumentException
+	{
+		return new String( this._read( this._find( aKind, aName ) ), StandardCharsets.UTF_8 );
+	}
+	
+	
+	
+	public Document readVolume( String aVolName ) throws IOException, IllegalArgumentException
+	{
+		if( aVolName.isEmpty() )
+			throw new IllegalArgumentException("empty String aVolName");
+		
+		// entry number -> parsed element, for the volume and everything it depends on
+		// each level of references is read in file order and parsed in one go
+		Map<Integer, Element> entries = new HashMap<>();
+		Set<Integer> pending = new TreeSet<>();
+		pending.add( this._find( GdmlIndex.VOLUME, aVolName ) );
+		
+		while( !pending.isEmpty() )
+		{
+			Integer[] level = pending.toArray( new Integer[0] );
+			Arrays.sort( level, ( a, b ) -> Long.compare( mIndex.getOffset( a ), mIndex.getOffset( b ) ) );
+			pending.clear();
+			
+			NodeList elements = this._parse( level ).getDocumentElement().getChildNodes();
+			for( int i = 0, e = 0; i < elements.getLength(); i++ )
+			{
+				if( !( elements.item( i ) instanceof Element ) ) continue;
+				Element element = (Element) elements.item( i );
+				int entry = level[e++];
+				entries.put( entry, element );
+				
+				if( mIndex.getKind( entry ) == GdmlIndex.VOLUME )
+				{
+					this._addRefs( element, "materialref", GdmlIndex.MATERIAL, entries, pending );
+					this._addRefs( element, "solidref", GdmlIndex.SOLID, entries, pending );
+					this._addRefs( element, "volumeref", GdmlIndex.VOLUME, entries, pending );
+					this._addRefs( element, "positionref", GdmlIndex.DEFINE, entries, pending );
+					this._addRefs( element, "rotationref", GdmlIndex.DEFINE, entries, pending );
+				}
+			}
+		}
+		
+		// entries keep their order from the file, where everything is defined before it is used
+		Integer[] order = entries.keySet().toArray( new Integer[0] );
+		Arrays.sort( order, ( a, b ) -> Long.compare( mIndex.getOffset( a ), mIndex.getOffset( b ) ) );
+		
+		Document doc = mDocBuilder.newDocument();
+		Element root = doc.createElement("gdml");
+		root.setAttribute("xmlns:xsi", GdmlWriter.XSI_NAMESPACE );
+		root.setAttribute( GdmlWriter.SCHEMA_LOCATION_ATTRIBUTE, GdmlWriter.SCHEMA_LOCATION );
+		doc.appendChild( root );
+		
+		Element[] sections = new Element[GdmlIndex.VOLUME + 1];
+		for( int k = 0; k < sections.length; k++ )
+		{
+			sections[k] = doc.createElement( GdmlWriter.SECTIONS[k] );
+			root.appendChild( sections[k] );
+		}
+		for( int entry : order )
+		{
+			sections[mIndex.getKind( entry )].appendChild( doc.importNode( entries.get( entry ), true ) );
+		}
+		
+		Element setup = doc.createElement("setup");
+		setup.setAttribute("name", "default");
+		setup.setAttribute("version", "1.0");
+		Element world = doc.createElement("world");
+		world.setAttribute("ref", aVolName );
+		setup.appendChild( world );
+		root.appendChild( setup );
+		
+		return doc;
+	}
+	
+	
+	
+	public void close() throws IOException
+	{
+		mChannel.close();
+	}
+	
+	
+	
+	private int _find( byte aKind, String aName ) throws IllegalArgumentException
+	{
+		int entry = mIndex.find( aKind, aName );
+		if( entry < 0 )
+			throw new IllegalArgumentException("could not find \""+ aName +"\" in index");
+		return entry;
+	}
+	
+	
+	
+	private byte[] _read( int aEntry ) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate( mIndex.getLength( aEntry ) );
+		long position = mIndex.getOffset( aEntry );
+		while( buffer.hasRemaining() )
+		{
+			int n = mChannel.read( buffer, position + buffer.position() );
+			if( n < 0 )
+				throw new IOException("unexpected end of file reading \""+ mIndex.getName( aEntry ) +"\"");
+		}
+		return buffer.array();
+	}
+	
+	
+	
+	private Document _parse( Integer[] aEntries ) throws IOException
+	{ // wraps the entries in a single element, so that they are parsed together
+		int length = 0;
+		for( int entry : aEntries ) { length += mIndex.getLength( entry ); }
+		
+		byte[] text = new byte[length + 7];
+		System.arraycopy( "<f>".getBytes( StandardCharsets.US_ASCII ), 0, text, 0, 3 );
+		int position = 3;
+		for( int entry : aEntries )
+		{
+			byte[] bytes = this._read( entry );
+			System.arraycopy( bytes, 0, text, position, bytes.length );
+			position += bytes.length;
+		}
+		System.arraycopy( "</f>".getBytes( StandardCharsets.US_ASCII ), 0, text, position, 4 );
+		
+		try {
+			return mDocBuilder.parse( new ByteArrayInputStream( text ) );
+		} catch( SAXException e ) {
+			throw new IOException("could not parse "+ aEntries.length +" entries starting with \""+ mIndex.getName( aEntries[0] ) +"\"", e );
+		}
+	}
+	
+	
+	
+	private void _addRefs( Element aElement, String aTag, byte aKind, Map<Integer, Element> aDone, Set<Integer> aPending ) throws IOException
+	{
+		NodeList refs = aElement.getElementsByTagName( aTag );
+		for( int i = 0; i < refs.getLength(); i++ )
+		{
+			String ref = ( (Element) refs.item( i ) ).getAttribute("ref");
+			int entry = mIndex.find( aKind, ref );
+			if( entry < 0 )
+				throw new IOException("\""+ ref +"\" is referenced but not in the index");
+			if( !aDone.containsKey( entry ) )
+				aPending.add( entry );
+		}
+	}
+}
@@ -0,0 +1,464 @@
+package org.jlab.geometry.exporter;
+
+import java.util.Arrays;
+
+/**
+ * <h1> GDML Model </h1>
+ * 
+ * Compact in-memory form of the contents of a GDML file, used by GdmlFile until it is written.
+ * 
+ * Every entry is a row index into parallel primitive arrays, and every name is an id into
+ * an interned name table, so a volume costs a few dozen bytes instead of a tree of DOM nodes
+ * with string attributes.
+ * Solids and logical volumes are stored by the name of their Geant4Basic, and the "sol_" and
+ * "vol_" prefixes are only added when the file is written.
+ * 
+ * @see GdmlWriter
+ */
+
+final class GdmlModel
+{
+	static final int POSITION = 0, ROTATION = 1; // define entries
+	static final int BOX = 0, TUBE = 1; // solids
+	static final int NONE = 0, INLINE = 1, REF = 2; // how a placement gives its position and rotation
+	
+	static final int SOLID_PARAMS = 5; // tube: rmin, rmax, z, startphi, deltaphi; box: x, y, z
+	static final int PLACEMENT_VALUES = 6; // x, y, z, rx, ry, rz
+	
+	static final String SOLID_PREFIX = "sol_", VOLUME_PREFIX = "vol_";
+	
+	static final int RETAINED_ROWS = 1 << 12; // kept by trim(), larger arrays are given back
+	
+	final NameTable mNames = new NameTable();
+	
+	// /define
+	int mDefineCount;
+	int[] mDefineKind = new int[16], mDefineName = new int[16], mDefineUnit = new int[16];
+	double[] mDefineValues = new double[16*3];
+	
+	// /materials
+	int mMaterialCount;
+	int[] mMaterialName = new int[4], mMaterialZ = new int[4], mMaterialDensityUnit = new int[4], mMaterialAtomUnit = new int[4];
+	double[] mMaterialDensity = new double[4], mMaterialAtom = new double[4];
+	
+	// /solids
+	int mSolidCount;
+	int[] mSolidType = new int[64], mSolidName = new int[64], mSolidLengthUnit = new int[64], mSolidAngleUnit = new int[64];
+	double[] mSolidParams = new double[64*SOLID_PARAMS];
+	
+	// /structure, placements of each volume form a linked list in insertion order
+	int mVolumeCount;
+	int[] mVolumeName = new int[64], mVolumeSolid = new int[64], mVolumeMaterial = new int[64];
+	int[] mVolumeFirstPlacement = new int[64], mVolumeLastPlacement = new int[64];
+	
+	int mPlacementCount;
+	int[] mPlacementParent = new int[64], mPlacementChild = new int[64], mPlacementNext = new int[64];
+	int[] mPlacementPosMode = new int[64], mPlacementRotMode = new int[64];
+	int[] mPlacementLengthUnit = new int[64], mPlacementAngleUnit = new int[64];
+	int[] mPlacementDefine = new int[64]; // number of define entries when the placement was added
+	double[] mPlacementValues = new double[64*PLACEMENT_VALUES];
+	
+	// /setup
+	int mWorldCount;
+	int[] mWorldVolume = new int[1];
+	
+	// name id -> row + 1, or 0 if there is none
+	private int[] mSolidByName = new int[64], mVolumeByName = new int[64];
+	
+	
+	
+	void clear()
+	{ // keeps the arrays, so that a reused exporter does not allocate them again
+		// only names that have been interned can have a row
+		int names = mNames.size();
+		Arrays.fill( mSolidByName, 0, Math.min( names, mSolidByName.length ), 0 );
+		Arrays.fill( mVolumeByName, 0, Math.min( names, mVolumeByName.length ), 0 );
+		mNames.clear();
+		mDefineCount = 0;
+		mMaterialCount = 0;
+		mSolidCount = 0;
+		mVolumeCount = 0;
+		mPlacementCount = 0;
+		mWorldCount = 0;
+	}
+	
+	
+	
+	void trim()
+	{ // clears the model, and replaces the arrays of every kind of entry that has grown past RETAINED_ROWS with ones of the initial size
+		this.clear();
+		mNames.trim();
+		
+		if( mDefineKind.length > RETAINED_ROWS )
+		{
+			mDefineKind = new int[16];
+			mDefineName = new int[16];
+			mDefineUnit = new int[16];
+			mDefineValues = new double[16*3];
+		}
+		if( mMaterialName.length > RETAINED_ROWS )
+		{
+			mMaterialName = new int[4];
+			mMaterialZ = new int[4];
+			mMaterialDensityUnit = new int[4];
+			mMaterialAtomUnit = new int[4];
+			mMaterialDensity = new double[4];
+			mMaterialAtom = new double[4];
+		}
+		if( mSolidType.length > RETAINED_ROWS )
+		{
+			mSolidType = new int[64];
+			mSolidName = new int[64];
+			mSolidLengthUnit = new int[64];
+			mSolidAngleUnit = new int[64];
+			mSolidParams = new double[64*SOLID_PARAMS];
+		}
+		if( mVolumeName.length > RETAINED_ROWS )
+		{
+			mVolumeName = new int[64];
+			mVolumeSolid = new int[64];
+			mVolumeMaterial = new int[64];
+			mVolumeFirstPlacement = new int[64];
+			mVolumeLastPlacement = new int[64];
+		}
+		if( mPlacementParent.length > RETAINED_ROWS )
+		{
+			mPlacementParent = new int[64];
+			mPlacementChild = new int[64];
+			mPlacementNext = new int[64];
+			mPlacementPosMode = new int[64];
+			mPlacementRotMode = new int[64];
+			mPlacementLengthUnit = new int[64];
+			mPlacementAngleUnit = new int[64];
+			mPlacementDefine = new int[64];
+			mPlacementValues = new double[64*PLACEMENT_VALUES];
+		}
+		if( mWorldVolume.length > RETAINED_ROWS )
+			mWorldVolume = new int[1];
+		if( mSolidByName.length > RETAINED_ROWS )
+			mSolidByName = new int[64];
+		if( mVolumeByName.length > RETAINED_ROWS )
+			mVolumeByName = new int[64];
+	}
+	
+	
+	
+	int addDefine( int aKind, String aName, double aX, double aY, double aZ, String aUnit )
+	{
+		int i = mDefineCount++;
+		if( i == mDefineKind.length )
+		{
+			int n = i * 2;
+			mDefineKind = Arrays.copyOf( mDefineKind, n );
+			mDefineName = Arrays.copyOf( mDefineName, n );
+			mDefineUnit = Arrays.copyOf( mDefineUnit, n );
+			mDefineValues = Arrays.copyOf( mDefineValues, n*3 );
+		}
+		mDefineKind[i] = aKind;
+		mDefineName[i] = mNames.intern( aName );
+		mDefineUnit[i] = mNames.intern( aUnit );
+		mDefineValues[3*i] = aX;
+		mDefineValues[3*i+1] = aY;
+		mDefineValues[3*i+2] = aZ;
+		return i;
+	}
+	
+	
+	
+	int addMaterial( String aName, int aZ, double aDensity, String aDensityUnit, double aAtom, String aAtomUnit )
+	{
+		int i = mMaterialCount++;
+		if( i == mMaterialName.length )
+		{
+			int n = i * 2;
+			mMaterialName = Arrays.copyOf( mMaterialName, n );
+			mMaterialZ = Arrays.copyOf( mMaterialZ, n );
+			mMaterialDensityUnit = Arrays.copyOf( mMaterialDensityUnit, n );
+			mMaterialAtomUnit = Arrays.copyOf( mMaterialAtomUnit, n );
+			mMaterialDensity = Arrays.copyOf( mMaterialDensity, n );
+			mMaterialAtom = Arrays.copyOf( mMaterialAtom, n );
+		}
+		mMaterialName[i] = mNames.intern( aName );
+		mMaterialZ[i] = aZ;
+		mMaterialDensity[i] = aDensity;
+		mMaterialDensityUnit[i] = mNames.intern( aDensityUnit );
+		mMaterialAtom[i] = aAtom;
+		mMaterialAtomUnit[i] = mNames.intern( aAtomUnit );
+		return i;
+	}
+	
+	
+	
+	int addSolid( int aType, String aName, double[] aParams, String aLengthUnit, String aAngleUnit )
+	{
+		int i = mSolidCount++;
+		if( i == mSolidType.length )
+		{
+			int n = i * 2;
+			mSolidType = Arrays.copyOf( mSolidType, n );
+			mSolidName = Arrays.copyOf( mSolidName, n );
+			mSolidLengthUnit = Arrays.copyOf( mSolidLengthUnit, n );
+			mSolidAngleUnit = Arrays.copyOf( mSolidAngleUnit, n );
+			mSolidParams = Arrays.copyOf( mSolidParams, n*SOLID_PARAMS );
+		}
+		int name = mNames.intern( aName );
+		mSolidType[i] = aType;
+		mSolidName[i] = name;
+		mSolidLengthUnit[i] = mNames.intern( aLengthUnit );
+		mSolidAngleUnit[i] = aAngleUnit == null ? -1 : mNames.intern( aAngleUnit );
+		System.arraycopy( aParams, 0, mSolidParams, i*SOLID_PARAMS, aParams.length );
+		
+		mSolidByName = _ensure( mSolidByName, name );
+		if( mSolidByName[name] == 0 ) mSolidByName[name] = i + 1; // first one wins
+		return i;
+	}
+	
+	
+	
+	int addVolume( String aName, int aSolid, String aMatRef )
+	{
+		int i = mVolumeCount++;
+		if( i == mVolumeName.length )
+		{
+			int n = i * 2;
+			mVolumeName = Arrays.copyOf( mVolumeName, n );
+			mVolumeSolid = Arrays.copyOf( mVolumeSolid, n );
+			mVolumeMaterial = Arrays.copyOf( mVolumeMaterial, n );
+			mVolumeFirstPlacement = Arrays.copyOf( mVolumeFirstPlacement, n );
+			mVolumeLastPlacement = Arrays.copyOf( mVolumeLastPlacement, n );
+		}
+		int name = mNames.intern( aName );
+		mVolumeName[i] = name;
+		mVolumeSolid[i] = aSolid;
+		mVolumeMaterial[i] = aMatRef == null ? -1 : mNames.intern( aMatRef );
+		mVolumeFirstPlacement[i] = -1;
+		mVolumeLastPlacement[i] = -1;
+		
+		mVolumeByName = _ensure( mVolumeByName, name );
+		if( mVolumeByName[name] == 0 ) mVolumeByName[name] = i + 1;
+		return i;
+	}
+	
+	
+	
+	int addPlacement( int aParent, int aChild )
+	{
+		int i = mPlacementCount++;
+		if( i == mPlacementParent.length )
+		{
+			int n = i * 2;
+			mPlacementParent = Arrays.copyOf( mPlacementParent, n );
+			mPlacementChild = Arrays.copyOf( mPlacementChild, n );
+			mPlacementNext = Arrays.copyOf( mPlacementNext, n );
+			mPlacementPosMode = Arrays.copyOf( mPlacementPosMode, n );
+			mPlacementRotMode = Arrays.copyOf( mPlacementRotMode, n );
+			mPlacementLengthUnit = Arrays.copyOf( mPlacementLengthUnit, n );
+			mPlacementAngleUnit = Arrays.copyOf( mPlacementAngleUnit, n );
+			mPlacementDefine = Arrays.copyOf( mPlacementDefine, n );
+			mPlacementValues = Arrays.copyOf( mPlacementValues, n*PLACEMENT_VALUES );
+		}
+		mPlacementParent[i] = aParent;
+		mPlacementChild[i] = aChild;
+		mPlacementNext[i] = -1;
+		mPlacementPosMode[i] = NONE;
+		mPlacementRotMode[i] = NONE;
+		mPlacementLengthUnit[i] = -1;
+		mPlacementDefine[i] = mDefineCount;
+		mPlacementAngleUnit[i] = -1;
+		
+		if( mVolumeFirstPlacement[aParent] < 0 )
+			mVolumeFirstPlacement[aParent] = i;
+		else
+			mPlacementNext[mVolumeLastPlacement[aParent]] = i;
+		mVolumeLastPlacement[aParent] = i;
+		return i;
+	}
+	
+	
+	
+	void setPosition( int aPlacement, int aMode, double aX, double aY, double aZ, String aUnit )
+	{
+		mPlacementPosMode[aPlacement] = aMode;
+		mPlacementLengthUnit[aPlacement] = mNames.intern( aUnit );
+		mPlacementValues[PLACEMENT_VALUES*aPlacement] = aX;
+		mPlacementValues[PLACEMENT_VALUES*aPlacement+1] = aY;
+		mPlacementValues[PLACEMENT_VALUES*aPlacement+2] = aZ;
+	}
+	
+	
+	
+	void setRotation( int aPlacement, int aMode, double aX, double aY, double aZ, String aUnit )
+	{
+		mPlacementRotMode[aPlacement] = aMode;
+		mPlacementAngleUnit[aPlacement] = mNames.intern( aUnit );
+		mPlacementValues[PLACEMENT_VALUES*aPlacement+3] = aX;
+		mPlacementValues[PLACEMENT_VALUES*aPlacement+4] = aY;
+		mPlacementValues[PLACEMENT_VALUES*aPlacement+5] = aZ;
+	}
+	
+	
+	
+	void addWorld( int aVolume )
+	{
+		if( mWorldCount == mWorldVolume.length )
+			mWorldVolume = Arrays.copyOf( mWorldVolume, mWorldCount * 2 );
+		mWorldVolume[mWorldCount++] = aVolume;
+	}
+	
+	
+	
+	int findSolid( String aName )
+	{ // row of the first solid called aName, or -1
+		int name = mNames.find( aName );
+		return name < 0 || name >= mSolidByName.length ? -1 : mSolidByName[name] - 1;
+	}
+	
+	
+	
+	int findVolume( String aName )
+	{ // row of the first volume called aName, or -1
+		int name = mNames.find( aName );
+		return name < 0 || name >= mVolumeByName.length ? -1 : mVolumeByName[name] - 1;
+	}
+	
+	
+	
+	String name( int aId )
+	{
+		return mNames.get( aId );
+	}
+	
+	
+	
+	// names of the position and rotation of a placement, in the physvol or in <define>
+	String positionName( int aPlacement )
+	{
+		return this.positionName( aPlacement, mPlacementPosMode[aPlacement] );
+	}
+	
+	
+	
+	String positionName( int aPlacement, int aMode )
+	{
+		String child = mNames.get( mVolumeName[mPlacementChild[aPlacement]] );
+		if( aMode == INLINE )
+			return "pos_"+ child;
+		return "pos_"+ child +"_in_"+ mNames.get( mVolumeName[mPlacementParent[aPlacement]] );
+	}
+	
+	
+	
+	String rotationName( int aPlacement )
+	{
+		return "rot_"+ mNames.get( mVolumeName[mPlacementChild[aPlacement]] ) +"_in_"+ mNames.get( mVolumeName[mPlacementParent[aPlacement]] );
+	}
+	
+	
+	
+	private static int[] _ensure( int[] aArray, int aIndex )
+	{
+		if( aIndex < aArray.length )
+			return aArray;
+		return Arrays.copyOf( aArray, Math.max( aIndex + 1, aArray.length * 2 ) );
+	}
+	
+	
+	
+	/**
+	 * Interned strings with int ids, using open addressing so that no entry objects are allocated.
+	 */
+	static final class NameTable
+	{
+		private String[] mNames = new String[64];
+		private int[] mSlots = new int[128]; // id + 1, or 0 if empty
+		private int mCount;
+		
+		int intern( String aName )
+		{
+			int mask = mSlots.length - 1;
+			int slot = _mix( aName.hashCode() ) & mask;
+			while( mSlots[slot] != 0 )
+			{
+				int id = mSlots[slot] - 1;
+				if( mNames[id].equals( aName ) )
+					return id;
+				slot = ( slot + 1 ) & mask;
+			}
+			
+			int id = mCount++;
+			if( id == mNames.length )
+				mNames = Arrays.copyOf( mNames, id * 2 );
+			mNames[id] = aName;
+			mSlots[slot] = id + 1;
+			
+			if( mCount * 2 > mSlots.length )
+				this._rehash( mSlots.length * 2 );
+			return id;
+		}
+		
+		int find( String aName )
+		{ // id of aName, or -1
+			int mask = mSlots.length - 1;
+			int slot = _mix( aName.hashCode() ) & mask;
+			while( mSlots[slot] != 0 )
+			{
+				int id = mSlots[slot] - 1;
+				if( mNames[id].equals( aName ) )
+					return id;
+				slot = ( slot + 1 ) & mask;
+			}
+			return -1;
+		}
+		
+		String get( int aId )
+		{
+			return mNames[aId];
+		}
+		
+		int size()
+		{
+			return mCount;
+		}
+		
+		void clear()
+		{ // empties only the slots in use, which are found by probing for each name
+			int mask = mSlots.length - 1;
+			for( int id = 0; id < mCount; id++ )
+			{
+				int slot = _mix( mNames[id].hashCode() ) & mask;
+				while( mSlots[slot] != id + 1 ) slot = ( slot + 1 ) & mask;
+				mSlots[slot] = 0;
+				mNames[id] = null;
+			}
+			mCount = 0;
+		}
+		
+		void trim()
+		{ // as clear(), and gives back tables that have grown past RETAINED_ROWS
+			this.clear();
+			if( mNames.length > RETAINED_ROWS )
+			{
+				mNames = new String[64];
+				mSlots = new int[128];
+			}
+		}
+		
+		private void _rehash( int aSize )
+		{
+			int[] slots = new int[aSize];
+			int mask = aSize - 1;
+			for( int id = 0; id < mCount; id++ )
+			{
+				int slot = _mix( mNames[id].hashCode() ) & mask;
+				while( slots[slot] != 0 ) slot = ( slot + 1 ) & mask;
+				slots[slot] = id + 1;
+			}
+			mSlots = slots;
+		}
+		
+		private static int _mix( int aHash )
+		{
+			return aHash ^ ( aHash >>> 16 );
+		}
+	}
+}
@@ -0,0 +1,381 @@
+package org.jlab.geometry.exporter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1> Parallel GDML Writer </h1>
+ * 
+ * Serializes a GdmlModel on several threads and writes it to a FileChannel.
+ * 
+ * The document is cut into chunks of roughly equal weight, each of which is serialized by
+ * its own GdmlWriter into a direct GdmlBuffer. A chunk can end between two placements
+ * of a large volume, so that a flattened tree, whose placements all belong to the top volume,
+ * is split as well. The finished chunks are written in order with gathering writes, while
+ * later chunks are still being serialized, so the file is byte-identical to the one
+ * GdmlWriter.write() produces.
+ * 
+ * Chunks are at most MAX_CHUNK_WEIGHT, and only SLOTS_PER_THREAD buffers per thread are
+ * used: a buffer is given the next chunk once its chunk has been written, and read by the
+ * schema check if there is one, so the memory held does not grow with the document.
+ * The buffers and the threads are kept between writes, and are all dropped by clear(),
+ * which GdmlFile.reset() calls before an exporter goes back to the pool.
+ */
+
+final class GdmlParallelWriter
+{
+	static final int MIN_CHUNK_WEIGHT = 1 << 14; // about 1 MB of text
+	static final int MAX_CHUNK_WEIGHT = 1 << 16;
+	private static final int CHUNKS_PER_THREAD = 4;
+	private static final int SLOTS_PER_THREAD = 2;
+	private static final long CHECK_POLL_MILLIS = 100; // how often the writer looks whether a stalled check has stopped
+	
+	private final GdmlModel mModel;
+	private final List<GdmlBuffer> mBuffers = new ArrayList<>();
+	private ExecutorService mPool, mChecker;
+	private int mPoolThreads;
+	
+	
+	
+	GdmlParallelWriter( GdmlModel aModel )
+	{
+		mModel = aModel;
+	}
+	
+	
+	
+	void clear()
+	{ // the native memory of the buffers is freed when they are garbage collected
+		mBuffers.clear();
+		if( mPool != null ) mPool.shutdownNow();
+		if( mChecker != null ) mChecker.shutdownNow();
+		mPool = null;
+		mChecker = null;
+	}
+	
+	
+	
+	long write( FileChannel aOut, int aThreads, GdmlIndex aIndex, String aCheckAs ) throws IOException
+	{ // returns the number of bytes written, and fills aIndex if it is not null
+		// if aCheckAs is not null, the text is checked against the export schema under that name on another thread while the chunks are written
+		List<Cursor> starts = this._plan( aThreads );
+		int chunks = starts.size();
+		int slots = Math.min( chunks, SLOTS_PER_THREAD * aThreads );
+		while( mBuffers.size() < slots ) { mBuffers.add( new GdmlBuffer( 1 << 16 ) ); }
+		
+		GdmlIndex[] indices = new GdmlIndex[chunks];
+		long[] openStarts = new long[chunks];
+		List<FutureTask<Void>> tasks = new ArrayList<>( chunks );
+		for( int k = 0; k < chunks; k++ )
+		{
+			final int chunk = k;
+			tasks.add( new FutureTask<Void>( () -> {
+				Cursor end = chunk + 1 < chunks ? starts.get( chunk + 1 ) : null;
+				if( aIndex != null ) indices[chunk] = new GdmlIndex();
+				openStarts[chunk] = this._writeChunk( starts.get( chunk ), end, mBuffers.get( chunk % slots ), indices[chunk] );
+			}, null ) );
+		}
+		
+		ExecutorService pool = chunks == 1 ? null : this._pool( aThreads );
+		Semaphore checked = new Semaphore( 0 ); // a permit for each chunk the check has read
+		boolean written = false;
+		Future<?> check = null;
+		try
+		{
+			for( int k = 0; k < slots; k++ ) { this._run( pool, tasks.get( k ) ); }
+			
+			if( aCheckAs != null )
+			{
+				if( mChecker == null ) mChecker = newPool( 1 );
+				check = mChecker.submit( () -> {
+					ExportSchemaValidator.check( chunks, k -> {
+						if( k > 0 ) checked.release(); // done with chunk k - 1
+						await( tasks.get( k ) );
+						return mBuffers.get( k % slots ).contents();
+					}, aCheckAs );
+					checked.release( chunks );
+					return null;
+				});
+			}
+			
+			// write each run of finished chunks with one gathering write
+			ByteBuffer[] views = new ByteBuffer[chunks];
+			long length = 0, base = 0, openStart = -1;
+			int k = 0;
+			while( k < chunks )
+			{
+				int first = k;
+				do {
+					await( tasks.get( k ) );
+					views[k] = mBuffers.get( k % slots ).contents();
+					k++;
+				} while( k < chunks && k < first + slots && tasks.get( k ).isDone() );
+				
+				long remaining = 0;
+				for( int i = first; i < k; i++ ) { remaining += views[i].remaining(); }
+				length += remaining;
+				while( remaining > 0 ) { remaining -= aOut.write( views, first, k - first ); }
+				
+				for( int i = first; i < k; i++ )
+				{
+					if( aIndex != null )
+					{
+						aIndex.append( indices[i], base, openStart );
+						if( openStarts[i] >= 0 ) openStart = base + openStarts[i];
+						base += views[i].limit();
+						indices[i] = null;
+					}
+					views[i] = null;
+					
+					// hand the buffer on to a later chunk, once the check has read it as well
+					if( i + slots < chunks )
+					{
+						if( check != null ) _awaitChecked( checked, check );
+						this._run( pool, tasks.get( i + slots ) );
+					}
+				}
+			}
+			
+			if( check != null ) await( check );
+			written = true;
+			return length;
+		}
+		finally
+		{
+			if( !written )
+			{
+				// a chunk that is still being serialized may write into a buffer until it stops,
+				// so the buffers and threads are dropped, and the checker no longer waits for chunks
+				for( FutureTask<Void> task : tasks ) { task.cancel( true ); }
+				if( check != null ) check.cancel( true );
+				this.clear();
+			}
+		}
+	}
+	
+	
+	
+	private ExecutorService _pool( int aThreads )
+	{ // kept while the number of threads stays the same
+		if( mPool == null || mPoolThreads != aThreads )
+		{
+			if( mPool != null ) mPool.shutdown();
+			mPool = newPool( aThreads );
+			mPoolThreads = aThreads;
+		}
+		return mPool;
+	}
+	
+	
+	
+	private void _run( ExecutorService aPool, FutureTask<Void> aTask )
+	{ // on the calling thread if there is no pool
+		if( aPool == null )
+			aTask.run();
+		else
+			aPool.execute( aTask );
+	}
+	
+	
+	
+	private static void _awaitChecked( Semaphore aChecked, Future<?> aCheck ) throws IOException
+	{ // waits until the check has read one more chunk, or has stopped, in which case write() throws its failure at the end
+		try {
+			while( !aCheck.isDone() && !aChecked.tryAcquire( CHECK_POLL_MILLIS, TimeUnit.MILLISECONDS ) ) {}
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while writing GDML");
+		}
+	}
+	
+	
+	
+	private long _writeChunk( Cursor aStart, Cursor aEnd, GdmlBuffer aOut, GdmlIndex aIndex )
+	{ // returns where a volume that is still open at the end of the chunk starts, or -1
+		GdmlWriter writer = new GdmlWriter( mModel );
+		writer.setIndex( aIndex );
+		aOut.clear();
+		
+		Cursor cursor = new Cursor( aStart );
+		if( cursor.isStart() ) writer.writeHeader( aOut );
+		while( !cursor.isEnd() && !cursor.equals( aEnd ) )
+		{
+			cursor.step( writer, aOut );
+		}
+		if( cursor.isEnd() )
+		{
+			writer.writeSetup( aOut );
+			writer.writeFooter( aOut );
+		}
+		return writer.getOpenVolumeStart();
+	}
+	
+	
+	
+	private List<Cursor> _plan( int aThreads )
+	{ // start of each chunk
+		GdmlModel m = mModel;
+		long total = m.mDefineCount + m.mMaterialCount + m.mSolidCount + 2L*m.mVolumeCount + Cursor.PLACEMENT_WEIGHT*(long) m.mPlacementCount;
+		long target = Math.min( MAX_CHUNK_WEIGHT, Math.max( MIN_CHUNK_WEIGHT, total / ( (long) aThreads * CHUNKS_PER_THREAD ) ) );
+		
+		List<Cursor> starts = new ArrayList<>();
+		Cursor cursor = new Cursor( m );
+		starts.add( new Cursor( cursor ) );
+		long weight = 0;
+		while( !cursor.isEnd() )
+		{
+			weight += cursor.step( null, null );
+			if( weight >= target && !cursor.isEnd() )
+			{
+				starts.add( new Cursor( cursor ) );
+				weight = 0;
+			}
+		}
+		return starts;
+	}
+	
+	
+	
+	static ExecutorService newPool( int aThreads )
+	{ // daemon threads, so that a failed export does not keep the JVM alive, which end when they have been idle for a while
+		int threads = Math.max( 1, aThreads );
+		ThreadPoolExecutor pool = new ThreadPoolExecutor( threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+			Thread thread = new Thread( r, "gdml-writer" );
+			thread.setDaemon( true );
+			return thread;
+		});
+		pool.allowCoreThreadTimeOut( true );
+		return pool;
+	}
+	
+	
+	
+	static void await( Future<?> aFuture ) throws IOException
+	{
+		try {
+			aFuture.get();
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while writing GDML");
+		} catch( ExecutionException e ) {
+			Throwable cause = e.getCause();
+			if( cause instanceof IOException ) throw (IOException) cause;
+			if( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+			if( cause instanceof Error ) throw (Error) cause;
+			throw new IOException( cause );
+		}
+	}
+	
+	
+	
+	/**
+	 * Position in the document: a section, an entry in it, and for the structure, whether
+	 * the head of the volume, one of its placements, or its tail is next.
+	 */
+	private static final class Cursor
+	{
+		static final int HEAD = -1, TAIL = -2;
+		static final int PLACEMENT_WEIGHT = 2;
+		
+		private final GdmlModel mModel;
+		private int mSection, mEntry, mPlacement;
+		
+		
+		
+		Cursor( GdmlModel aModel )
+		{
+			mModel = aModel;
+			mPlacement = HEAD;
+		}
+		
+		
+		
+		Cursor( Cursor aCursor )
+		{
+			mModel = aCursor.mModel;
+			mSection = aCursor.mSection;
+			mEntry = aCursor.mEntry;
+			mPlacement = aCursor.mPlacement;
+		}
+		
+		
+		
+		boolean isStart()
+		{
+			return mSection == 0 && mEntry == 0 && mPlacement == HEAD;
+		}
+		
+		
+		
+		boolean isEnd()
+		{
+			return mSection == GdmlWriter.SECTIONS.length;
+		}
+		
+		
+		
+		boolean equals( Cursor aCursor )
+		{
+			return aCursor != null && mSection == aCursor.mSection && mEntry == aCursor.mEntry && mPlacement == aCursor.mPlacement;
+		}
+		
+		
+		
+		int step( GdmlWriter aWriter, GdmlBuffer aOut )
+		{ // writes the next piece if aWriter is not null, and returns its weight
+			GdmlModel m = mModel;
+			int count = GdmlWriter.count( m, mSection );
+			
+			if( mEntry == count )
+			{ // also opens and closes an empty section
+				if( aWriter != null )
+				{
+					if( count == 0 ) aWriter.writeSectionStart( aOut, GdmlWriter.SECTIONS[mSection], 0 );
+					aWriter.writeSectionEnd( aOut, GdmlWriter.SECTIONS[mSection], count );
+				}
+				mSection++;
+				mEntry = 0;
+				return 0;
+			}
+			
+			if( aWriter != null && mEntry == 0 && mPlacement == HEAD )
+				aWriter.writeSectionStart( aOut, GdmlWriter.SECTIONS[mSection], count );
+			
+			if( mSection != GdmlWriter.STRUCTURE )
+			{
+				if( aWriter != null ) aWriter.writeEntry( aOut, mSection, mEntry );
+				mEntry++;
+				return 1;
+			}
+			
+			switch( mPlacement )
+			{
+			case HEAD:
+				if( aWriter != null ) aWriter.writeVolumeHead( aOut, mEntry );
+				mPlacement = m.mVolumeFirstPlacement[mEntry] < 0 ? TAIL : m.mVolumeFirstPlacement[mEntry];
+				return 1;
+			case TAIL:
+				if( aWriter != null ) aWriter.writeVolumeTail( aOut, mEntry );
+				mEntry++;
+				mPlacement = HEAD;
+				return 1;
+			default:
+				if( aWriter != null ) aWriter.writePlacement( aOut, mPlacement );
+				mPlacement = m.mPlacementNext[mPlacement] < 0 ? TAIL : m.mPlacementNext[mPlacement];
+				return PLACEMENT_WEIGHT;
+			}
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package org.jlab.geometry.exporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jlab.detector.units.SystemOfUnits.Length;
+import org.jlab.detector.volume.Geant4Basic;
+
+import eu.mihosoft.vrl.v3d.Vector3d;
+
+/**
+ * <h1> GDML Variant Writer </h1>
+ * 
+ * Writes variants of one exported geometry, each with the placements of a few volumes
+ * changed by a GeometryPerturbation, without serializing the whole model for every variant.
+ * 
+ * The model is serialized once, remembering where each define entry and volume starts.
+ * For a variant, only the volumes that hold a changed placement, and in global mode the
+ * define entries of those placements, are written again. The file is then assembled from
+ * slices of the shared text and the new fragments with gathering writes, so that it is
+ * byte-identical to a full export of the perturbed tree. Variants are written in parallel.
+ */
+
+final class GdmlVariantWriter
+{
+	private final GdmlModel mModel;
+	private final List<Geant4Basic> mPlacedVolumes; // by placement
+	private final int mPosMode, mRotMode;
+	private final int mLengthUnit, mAngleUnit; // name ids
+	private final String mActualAngleUnit, mDesiredAngleUnit;
+	
+	// the model serialized once, with the start of every define entry and volume,
+	// and the end of the last one
+	private final GdmlBuffer mBase;
+	private int[] mDefineStart, mVolumeStart;
+	private int mDefineSectionStart, mDefineSectionEnd;
+	
+	
+	
+	GdmlVariantWriter( GdmlModel aModel, List<Geant4Basic> aPlacedVolumes, String aPositionLoc, String aRotationLoc,
+			String aActualAngleUnit, String aDesiredAngleUnit, GdmlBuffer aBuffer ) throws IllegalArgumentException
+	{
+		mModel = aModel;
+		mPlacedVolumes = aPlacedVolumes;
+		mPosMode = _mode("positionLoc", aPositionLoc );
+		mRotMode = _mode("rotationLoc", aRotationLoc );
+		mLengthUnit = aModel.mNames.intern( Length.unit() );
+		mAngleUnit = aModel.mNames.intern( aDesiredAngleUnit );
+		mActualAngleUnit = aActualAngleUnit;
+		mDesiredAngleUnit = aDesiredAngleUnit;
+		mBase = aBuffer;
+	}
+	
+	
+	
+	void write( String aName, List<GeometryPerturbation> aVariants, int aThreads, boolean aCheckSchema, boolean aVerbose ) throws IOException, NullPointerException
+	{ // writes aName_0.gdml, aName_1.gdml, ...
+		Map<String, int[]> placements = this._findPlacements( aVariants );
+		this._writeBase();
+		
+		ExecutorService pool = GdmlParallelWriter.newPool( Math.min( aThreads, aVariants.size() ) );
+		try
+		{
+			List<Future<?>> futures = new ArrayList<>();
+			for( int i = 0; i < aVariants.size(); i++ )
+			{
+				GeometryPerturbation variant = aVariants.get( i );
+				String filename = aName +"_"+ i +".gdml";
+				futures.add( pool.submit( () -> {
+					this._writeVariant( variant, placements, filename, aCheckSchema );
+					if(aVerbose) System.out.println("wrote file \""+ filename +"\"");
+					return null;
+				}));
+			}
+			for( Future<?> future : futures ) { GdmlParallelWriter.await( future ); }
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+	
+	
+	
+	private Map<String, int[]> _findPlacements( List<GeometryPerturbation> aVariants ) throws NullPointerException
+	{ // volume name -> placements of volumes with that name
+		Set<String> names = new HashSet<>();
+		for( GeometryPerturbation variant : aVariants ) { names.addAll( variant.getVolumeNames() ); }
+		
+		Map<String, List<Integer>> found = new HashMap<>();
+		for( int p = 0; p < mPlacedVolumes.size(); p++ )
+		{
+			String name = mPlacedVolumes.get( p ).getName();
+			if( names.contains( name ) )
+				found.computeIfAbsent( name, k -> new ArrayList<>() ).add( p );
+		}
+		
+		Map<String, int[]> placements = new HashMap<>();
+		for( String name : names )
+		{
+			List<Integer> list = found.get( name );
+			if( list == null )
+				throw new NullPointerException("could not find physical volume \""+ GdmlModel.VOLUME_PREFIX + name +"\"");
+			placements.put( name, list.stream().mapToInt( Integer::intValue ).toArray() );
+		}
+		return placements;
+	}
+	
+	
+	
+	private void _writeBase()
+	{
+		GdmlModel m = mModel;
+		GdmlWriter writer = new GdmlWriter( m );
+		GdmlBuffer out = mBase;
+		out.clear();
+		
+		mDefineStart = new int[m.mDefineCount + 1];
+		mVolumeStart = new int[m.mVolumeCount + 1];
+		
+		writer.writeHeader( out );
+		for( int s = 0; s < GdmlWriter.SECTIONS.length; s++ )
+		{
+			int count = GdmlWriter.count( m, s );
+			int[] starts = s == GdmlIndex.DEFINE ? mDefineStart : s == GdmlWriter.STRUCTURE ? mVolumeStart : null;
+			
+			if( s == GdmlIndex.DEFINE ) mDefineSectionStart = out.size();
+			writer.writeSectionStart( out, GdmlWriter.SECTIONS[s], count );
+			for( int i = 0; i < count; i++ )
+			{
+				if( starts != null ) starts[i] = out.size();
+				writer.writeEntry( out, s, i );
+			}
+			if( starts != null ) starts[count] = out.size();
+			writer.writeSectionEnd( out, GdmlWriter.SECTIONS[s], count );
+			if( s == GdmlIndex.DEFINE ) mDefineSectionEnd = out.size();
+		}
+		writer.writeSetup( out );
+		writer.writeFooter( out );
+	}
+	
+	
+	
+	private void _writeVariant( GeometryPerturbation aVariant, Map<String, int[]> aPlacements, String aFilename, boolean aCheckSchema ) throws IOException
+	{
+		GdmlModel m = mModel;
+		
+		// changed placements, in model order
+		int[] changed = aVariant.getVolumeNames().stream().flatMapToInt( name -> Arrays.stream( aPlacements.get( name ) ) ).sorted().distinct().toArray();
+		int n = changed.length;
+		
+		// their new position and rotation, converted as the walker would have done it
+		double[] values = new double[n * GdmlModel.PLACEMENT_VALUES];
+		int[] posModes = new int[n], rotModes = new int[n];
+		int defineCount = m.mDefineCount;
+		for( int i = 0; i < n; i++ )
+		{
+			int p = changed[i];
+			Geant4Basic volume = mPlacedVolumes.get( p );
+			double[] move = aVariant.getTranslation( volume.getName() );
+			double[] turn = aVariant.getRotation( volume.getName() );
+			
+			Vector3d pos = volume.getLocalPosition();
+			double[] rot = volume.getLocalRotation().clone();
+			for( int j = 0; j < 3; j++ ) { rot[j] += turn[j]; }
+			GeometryPlacement placement = new GeometryPlacement( m.name( m.mVolumeName[m.mPlacementParent[p]] ), volume,
+					new Vector3d( pos.x + move[0], pos.y + move[1], pos.z + move[2] ), rot, volume.getLocalRotationOrder(), mActualAngleUnit, mDesiredAngleUnit );
+			
+			int o = i * GdmlModel.PLACEMENT_VALUES;
+			Vector3d newPos = placement.getPosition();
+			double[] newRot = placement.getRotation( mDesiredAngleUnit );
+			values[o]   = newPos.x;
+			values[o+1] = newPos.y;
+			values[o+2] = newPos.z;
+			System.arraycopy( newRot, 0, values, o+3, 3 );
+			posModes[i] = placement.hasPosition() ? mPosMode : GdmlModel.NONE;
+			rotModes[i] = placement.hasRotation() ? mRotMode : GdmlModel.NONE;
+			
+			defineCount += _defines( posModes[i], rotModes[i] ) - _defines( m.mPlacementPosMode[p], m.mPlacementRotMode[p] );
+		}
+		
+		// fragments that replace ranges of the base text: base start, base end, fragment start, fragment end
+		GdmlWriter writer = new GdmlWriter( m );
+		GdmlBuffer fragments = new GdmlBuffer( 1 << 12 );
+		List<int[]> edits = new ArrayList<>();
+		
+		boolean sectionChanges = ( m.mDefineCount == 0 ) != ( defineCount == 0 );
+		if( sectionChanges )
+		{ // the define section opens or closes, so no base entry is left in it
+			writer.writeSectionStart( fragments, GdmlWriter.SECTIONS[GdmlIndex.DEFINE], defineCount );
+		}
+		for( int i = 0; i < n; i++ )
+		{
+			int p = changed[i];
+			int from = fragments.size();
+			int o = i * GdmlModel.PLACEMENT_VALUES;
+			if( posModes[i] == GdmlModel.REF )
+				writer.writeDefine( fragments, GdmlModel.POSITION, m.positionName( p, GdmlModel.REF ), mLengthUnit, values, o );
+			if( rotModes[i] == GdmlModel.REF )
+				writer.writeDefine( fragments, GdmlModel.ROTATION, m.rotationName( p ), mAngleUnit, values, o+3 );
+			
+			int old = _defines( m.mPlacementPosMode[p], m.mPlacementRotMode[p] );
+			if( !sectionChanges && ( old > 0 || fragments.size() > from ) )
+			{
+				int first = m.mPlacementDefine[p];
+				edits.add( new int[]{ mDefineStart[first], mDefineStart[first + old], from, fragments.size() } );
+			}
+		}
+		if( sectionChanges )
+		{
+			writer.writeSectionEnd( fragments, GdmlWriter.SECTIONS[GdmlIndex.DEFINE], defineCount );
+			edits.add( new int[]{ mDefineSectionStart, mDefineSectionEnd, 0, fragments.size() } );
+		}
+		
+		// volumes holding a changed placement
+		int[] parents = Arrays.stream( changed ).map( p -> m.mPlacementParent[p] ).sorted().distinct().toArray();
+		for( int v : parents )
+		{
+			int from = fragments.size();
+			writer.writeVolumeHead( fragments, v );
+			for( int p = m.mVolumeFirstPlacement[v]; p >= 0; p = m.mPlacementNext[p] )
+			{
+				int i = Arrays.binarySearch( changed, p );
+				if( i >= 0 )
+					writer.writePlacement( fragments, p, posModes[i], rotModes[i], values, i * GdmlModel.PLACEMENT_VALUES, mLengthUnit, mAngleUnit );
+				else
+					writer.writePlacement( fragments, p );
+			}
+			writer.writeVolumeTail( fragments, v );
+			edits.add( new int[]{ mVolumeStart[v], mVolumeStart[v+1], from, fragments.size() } );
+		}
+		
+		// shared text between the edits, and the new fragments
+		ByteBuffer base = mBase.contents(), text = fragments.contents();
+		List<ByteBuffer> slices = new ArrayList<>( 2*edits.size() + 1 );
+		int at = 0;
+		for( int[] edit : edits )
+		{
+			slices.add( _slice( base, at, edit[0] ) );
+			slices.add( _slice( text, edit[2], edit[3] ) );
+			at = edit[1];
+		}
+		slices.add( _slice( base, at, mBase.size() ) );
+		
+		ByteBuffer[] buffers = slices.toArray( new ByteBuffer[0] );
+		ByteBuffer[] contents = new ByteBuffer[buffers.length]; // to check, the write moves the positions of the others
+		for( int i = 0; i < buffers.length; i++ ) { contents[i] = buffers[i].duplicate(); }
+		long remaining = 0;
+		for( ByteBuffer buffer : buffers ) { remaining += buffer.remaining(); }
+		try( FileChannel out = FileChannel.open( Paths.get( aFilename ), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) )
+		{
+			while( remaining > 0 ) { remaining -= out.write( buffers ); }
+		}
+		
+		if( aCheckSchema )
+			ExportSchemaValidator.check( contents, aFilename );
+	}
+	
+	
+	
+	private static int _defines( int aPosMode, int aRotMode )
+	{ // define entries a placement has in global mode
+		return ( aPosMode == GdmlModel.REF ? 1 : 0 ) + ( aRotMode == GdmlModel.REF ? 1 : 0 );
+	}
+	
+	
+	
+	private static ByteBuffer _slice( ByteBuffer aBuffer, int aFrom, int aTo )
+	{
+		ByteBuffer slice = aBuffer.duplicate();
+		slice.limit( aTo );
+		slice.position( aFrom );
+		return slice.slice();
+	}
+	
+	
+	
+	private static int _mode( String aOption, String aLoc ) throws IllegalArgumentException
+	{
+		switch( aLoc )
+		{
+		case "local": return GdmlModel.INLINE;
+		case "global": return GdmlModel.REF;
+		default: throw new IllegalArgumentException( aOption +": \""+ aLoc +"\"");
+		}
+	}
+}
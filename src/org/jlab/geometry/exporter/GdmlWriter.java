@@ -0,0 +1,385 @@
+package org.jlab.geometry.exporter;
+
+/**
+ * <h1> GDML Writer </h1>
+ * 
+ * Serializes a GdmlModel as indented GDML text.
+ * 
+ * The layout is the one the DOM serializer used to produce: two spaces of indentation per
+ * level, attributes in alphabetical order, and empty elements closed with "/>".
+ * 
+ * If an index is set, the byte range of every entry is recorded in it, from the start of
+ * its first line to the end of its last line. The sections, and the head, placements and
+ * tail of each volume, can also be written piecewise, which GdmlParallelWriter uses to
+ * split a model into chunks.
+ */
+
+final class GdmlWriter
+{
+	static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+	static final String SCHEMA_LOCATION = "http://cern.ch/service-spi/app/releases/GDML/Schema/gdml.xsd";
+	static final String SCHEMA_LOCATION_ATTRIBUTE = "xsi:noNamespaceSchemaLocation"; // on the root element, with SCHEMA_LOCATION
+	
+	// in the order of the GdmlIndex kinds
+	static final String[] SECTIONS = { "define", "materials", "solids", "structure" };
+	static final int STRUCTURE = GdmlIndex.VOLUME;
+	
+	private final GdmlModel mModel;
+	private GdmlIndex mIndex;
+	private long mVolumeStart = -1; // of the volume whose head has been written but not its tail
+	
+	
+	
+	GdmlWriter( GdmlModel aModel )
+	{
+		mModel = aModel;
+	}
+	
+	
+	
+	void setIndex( GdmlIndex aIndex )
+	{
+		mIndex = aIndex;
+	}
+	
+	
+	
+	void write( GdmlBuffer aOut )
+	{
+		this.writeHeader( aOut );
+		
+		for( int s = 0; s < SECTIONS.length; s++ )
+		{
+			int count = count( mModel, s );
+			this.writeSectionStart( aOut, SECTIONS[s], count );
+			for( int i = 0; i < count; i++ ) { this.writeEntry( aOut, s, i ); }
+			this.writeSectionEnd( aOut, SECTIONS[s], count );
+		}
+		
+		this.writeSetup( aOut );
+		this.writeFooter( aOut );
+	}
+	
+	
+	
+	static int count( GdmlModel m, int aSection )
+	{
+		switch( aSection )
+		{
+		case GdmlIndex.DEFINE: return m.mDefineCount;
+		case GdmlIndex.MATERIAL: return m.mMaterialCount;
+		case GdmlIndex.SOLID: return m.mSolidCount;
+		case STRUCTURE: return m.mVolumeCount;
+		default: throw new IllegalArgumentException("unknown section "+ aSection );
+		}
+	}
+	
+	
+	
+	void writeEntry( GdmlBuffer aOut, int aSection, int aEntry )
+	{
+		switch( aSection )
+		{
+		case GdmlIndex.DEFINE: this.writeDefine( aOut, aEntry ); break;
+		case GdmlIndex.MATERIAL: this.writeMaterial( aOut, aEntry ); break;
+		case GdmlIndex.SOLID: this.writeSolid( aOut, aEntry ); break;
+		case STRUCTURE: this.writeVolume( aOut, aEntry ); break;
+		default: throw new IllegalArgumentException("unknown section "+ aSection );
+		}
+	}
+	
+	
+	
+	void writeHeader( GdmlBuffer aOut )
+	{
+		aOut.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+		aOut.append("<gdml xmlns:xsi=\"").append( XSI_NAMESPACE ).append("\" ").append( SCHEMA_LOCATION_ATTRIBUTE ).append("=\"").append( SCHEMA_LOCATION ).append("\">\n");
+	}
+	
+	
+	
+	void writeFooter( GdmlBuffer aOut )
+	{
+		aOut.append("</gdml>\n");
+	}
+	
+	
+	
+	void writeSectionStart( GdmlBuffer aOut, String aSection, int aCount )
+	{
+		aOut.append("  <").append( aSection ).append( aCount == 0 ? "/>\n" : ">\n" );
+	}
+	
+	
+	
+	void writeSectionEnd( GdmlBuffer aOut, String aSection, int aCount )
+	{
+		if( aCount != 0 )
+			aOut.append("  </").append( aSection ).append(">\n");
+	}
+	
+	
+	
+	void writeDefine( GdmlBuffer aOut, int aDefine )
+	{
+		GdmlModel m = mModel;
+		this.writeDefine( aOut, m.mDefineKind[aDefine], m.name( m.mDefineName[aDefine] ), m.mDefineUnit[aDefine], m.mDefineValues, 3*aDefine );
+	}
+	
+	
+	
+	void writeDefine( GdmlBuffer aOut, int aKind, String aName, int aUnit, double[] aValues, int aOffset )
+	{
+		GdmlModel m = mModel;
+		long start = aOut.position();
+		aOut.append( aKind == GdmlModel.POSITION ? "    <position" : "    <rotation" );
+		_attribute( aOut, "name", aName );
+		_attribute( aOut, "unit", m.name( aUnit ) );
+		_xyz( aOut, aValues, aOffset );
+		aOut.append("/>\n");
+		
+		if( mIndex != null )
+			mIndex.add( GdmlIndex.DEFINE, aName, start, (int)( aOut.position() - start ) );
+	}
+	
+	
+	
+	void writeMaterial( GdmlBuffer aOut, int aMaterial )
+	{
+		GdmlModel m = mModel;
+		long start = aOut.position();
+		aOut.append("    <material Z=\"").append( m.mMaterialZ[aMaterial] ).append('"');
+		_attribute( aOut, "name", m.name( m.mMaterialName[aMaterial] ) );
+		aOut.append(">\n      <D");
+		_attribute( aOut, "unit", m.name( m.mMaterialDensityUnit[aMaterial] ) );
+		_attribute( aOut, "value", m.mMaterialDensity[aMaterial] );
+		aOut.append("/>\n      <atom");
+		_attribute( aOut, "unit", m.name( m.mMaterialAtomUnit[aMaterial] ) );
+		_attribute( aOut, "value", m.mMaterialAtom[aMaterial] );
+		aOut.append("/>\n    </material>\n");
+		
+		if( mIndex != null )
+			mIndex.add( GdmlIndex.MATERIAL, m.name( m.mMaterialName[aMaterial] ), start, (int)( aOut.position() - start ) );
+	}
+	
+	
+	
+	void writeSolid( GdmlBuffer aOut, int aSolid )
+	{
+		GdmlModel m = mModel;
+		double[] p = m.mSolidParams;
+		int o = aSolid * GdmlModel.SOLID_PARAMS;
+		long start = aOut.position();
+		
+		switch( m.mSolidType[aSolid] )
+		{
+		case GdmlModel.BOX:
+			aOut.append("    <box");
+			_attribute( aOut, "lunit", m.name( m.mSolidLengthUnit[aSolid] ) );
+			_name( aOut, "name", GdmlModel.SOLID_PREFIX, m.mSolidName[aSolid] );
+			_xyz( aOut, p, o );
+			break;
+			
+		case GdmlModel.TUBE:
+			aOut.append("    <tube");
+			_attribute( aOut, "aunit", m.name( m.mSolidAngleUnit[aSolid] ) );
+			_attribute( aOut, "deltaphi", p[o+4] );
+			_attribute( aOut, "lunit", m.name( m.mSolidLengthUnit[aSolid] ) );
+			_name( aOut, "name", GdmlModel.SOLID_PREFIX, m.mSolidName[aSolid] );
+			_attribute( aOut, "rmax", p[o+1] );
+			_attribute( aOut, "rmin", p[o] );
+			_attribute( aOut, "startphi", p[o+3] );
+			_attribute( aOut, "z", p[o+2] );
+			break;
+			
+		default:
+			throw new IllegalStateException("unknown solid type "+ m.mSolidType[aSolid] );
+		}
+		aOut.append("/>\n");
+		
+		if( mIndex != null )
+			mIndex.add( GdmlIndex.SOLID, GdmlModel.SOLID_PREFIX + m.name( m.mSolidName[aSolid] ), start, (int)( aOut.position() - start ) );
+	}
+	
+	
+	
+	void writeVolume( GdmlBuffer aOut, int aVolume )
+	{
+		GdmlModel m = mModel;
+		this.writeVolumeHead( aOut, aVolume );
+		for( int p = m.mVolumeFirstPlacement[aVolume]; p >= 0; p = m.mPlacementNext[p] )
+		{
+			this.writePlacement( aOut, p );
+		}
+		this.writeVolumeTail( aOut, aVolume );
+	}
+	
+	
+	
+	void writeVolumeHead( GdmlBuffer aOut, int aVolume )
+	{
+		GdmlModel m = mModel;
+		mVolumeStart = aOut.position();
+		aOut.append("    <volume");
+		_name( aOut, "name", GdmlModel.VOLUME_PREFIX, m.mVolumeName[aVolume] );
+		aOut.append(">\n");
+		
+		if( m.mVolumeMaterial[aVolume] >= 0 )
+		{
+			aOut.append("      <materialref");
+			_attribute( aOut, "ref", m.name( m.mVolumeMaterial[aVolume] ) );
+			aOut.append("/>\n");
+		}
+		
+		aOut.append("      <solidref");
+		_name( aOut, "ref", GdmlModel.SOLID_PREFIX, m.mSolidName[m.mVolumeSolid[aVolume]] );
+		aOut.append("/>\n");
+	}
+	
+	
+	
+	void writeVolumeTail( GdmlBuffer aOut, int aVolume )
+	{
+		GdmlModel m = mModel;
+		aOut.append("    </volume>\n");
+		
+		if( mIndex != null )
+		{
+			// bounding box of the solid, in its own frame
+			int sol = m.mVolumeSolid[aVolume];
+			double[] p = m.mSolidParams;
+			int o = sol * GdmlModel.SOLID_PARAMS;
+			double hx, hy, hz;
+			if( m.mSolidType[sol] == GdmlModel.TUBE )
+			{
+				hx = p[o+1];
+				hy = p[o+1];
+				hz = p[o+2] / 2.0;
+			}
+			else
+			{
+				hx = p[o] / 2.0;
+				hy = p[o+1] / 2.0;
+				hz = p[o+2] / 2.0;
+			}
+			// a volume whose head went into an earlier buffer gets offset -1, and its length
+			// is where it ends in this one, GdmlIndex.append() resolves both
+			long start = Math.max( mVolumeStart, 0 );
+			mIndex.addVolume( GdmlModel.VOLUME_PREFIX + m.name( m.mVolumeName[aVolume] ), mVolumeStart, (int)( aOut.position() - start ), hx, hy, hz );
+		}
+		mVolumeStart = -1;
+	}
+	
+	
+	
+	long getOpenVolumeStart()
+	{ // where the volume that has a head but no tail yet starts, or -1
+		return mVolumeStart;
+	}
+	
+	
+	
+	void writePlacement( GdmlBuffer aOut, int aPlacement )
+	{
+		GdmlModel m = mModel;
+		this.writePlacement( aOut, aPlacement, m.mPlacementPosMode[aPlacement], m.mPlacementRotMode[aPlacement],
+				m.mPlacementValues, aPlacement * GdmlModel.PLACEMENT_VALUES, m.mPlacementLengthUnit[aPlacement], m.mPlacementAngleUnit[aPlacement] );
+	}
+	
+	
+	
+	// writes a placement of the model with other values, e.g. for a variant of the geometry
+	void writePlacement( GdmlBuffer aOut, int aPlacement, int aPosMode, int aRotMode, double[] aValues, int aOffset, int aLengthUnit, int aAngleUnit )
+	{
+		GdmlModel m = mModel;
+		
+		aOut.append("      <physvol>\n        <volumeref");
+		_name( aOut, "ref", GdmlModel.VOLUME_PREFIX, m.mVolumeName[m.mPlacementChild[aPlacement]] );
+		aOut.append("/>\n");
+		
+		switch( aPosMode )
+		{
+		case GdmlModel.INLINE:
+			aOut.append("        <position");
+			_attribute( aOut, "name", m.positionName( aPlacement, aPosMode ) );
+			_attribute( aOut, "unit", m.name( aLengthUnit ) );
+			_xyz( aOut, aValues, aOffset );
+			aOut.append("/>\n");
+			break;
+		case GdmlModel.REF:
+			aOut.append("        <positionref");
+			_attribute( aOut, "ref", m.positionName( aPlacement, aPosMode ) );
+			aOut.append("/>\n");
+			break;
+		}
+		
+		switch( aRotMode )
+		{
+		case GdmlModel.INLINE:
+			aOut.append("        <rotation");
+			_attribute( aOut, "name", m.rotationName( aPlacement ) );
+			_attribute( aOut, "unit", m.name( aAngleUnit ) );
+			_xyz( aOut, aValues, aOffset + 3 );
+			aOut.append("/>\n");
+			break;
+		case GdmlModel.REF:
+			aOut.append("        <rotationref");
+			_attribute( aOut, "ref", m.rotationName( aPlacement ) );
+			aOut.append("/>\n");
+			break;
+		}
+		
+		aOut.append("      </physvol>\n");
+	}
+	
+	
+	
+	void writeSetup( GdmlBuffer aOut )
+	{
+		GdmlModel m = mModel;
+		aOut.append("  <setup name=\"default\" version=\"1.0\"");
+		if( m.mWorldCount == 0 )
+		{
+			aOut.append("/>\n");
+			return;
+		}
+		aOut.append(">\n");
+		for( int i = 0; i < m.mWorldCount; i++ )
+		{
+			aOut.append("    <world");
+			_name( aOut, "ref", GdmlModel.VOLUME_PREFIX, m.mVolumeName[m.mWorldVolume[i]] );
+			aOut.append("/>\n");
+		}
+		aOut.append("  </setup>\n");
+	}
+	
+	
+	
+	private static void _attribute( GdmlBuffer aOut, String aName, String aValue )
+	{
+		aOut.append(' ').append( aName ).append("=\"").appendEscaped( aValue ).append('"');
+	}
+	
+	
+	
+	private static void _attribute( GdmlBuffer aOut, String aName, double aValue )
+	{
+		aOut.append(' ').append( aName ).append("=\"").append( aValue ).append('"');
+	}
+	
+	
+	
+	private void _name( GdmlBuffer aOut, String aName, String aPrefix, int aNameId )
+	{
+		aOut.append(' ').append( aName ).append("=\"").append( aPrefix ).appendEscaped( mModel.name( aNameId ) ).append('"');
+	}
+	
+	
+	
+	private static void _xyz( GdmlBuffer aOut, double[] aValues, int aOffset )
+	{
+		_attribute( aOut, "x", aValues[aOffset] );
+		_attribute( aOut, "y", aValues[aOffset+1] );
+		_attribute( aOut, "z", aValues[aOffset+2] );
+	}
+}
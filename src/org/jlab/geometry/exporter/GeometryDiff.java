@@ -0,0 +1,200 @@
+package org.jlab.geometry.exporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jlab.detector.volume.Geant4Basic;
+
+/**
+ * <h1> Geometry Diff </h1>
+ * 
+ * Reports the volumes, solids and materials that were added, removed or modified
+ * between two geometries, given as Geant4Basic trees, GDML files or GeometryHashTrees.
+ * A tree can be compared with a file, and with the file GdmlFile exports from it there
+ * are no differences.
+ * 
+ * The comparison descends from the world volumes and stops at every pair of volumes
+ * whose subtree hashes match, so only the changed branches of a large geometry are visited.
+ * 
+ * @see GeometryHashTree
+ */
+
+public class GeometryDiff
+{
+	private final Set<String> mAddedVolumes = new LinkedHashSet<>(), mRemovedVolumes = new LinkedHashSet<>(), mModifiedVolumes = new LinkedHashSet<>();
+	private final Set<String> mAddedSolids = new LinkedHashSet<>(), mRemovedSolids = new LinkedHashSet<>(), mModifiedSolids = new LinkedHashSet<>();
+	private final Set<String> mAddedMaterials = new LinkedHashSet<>(), mRemovedMaterials = new LinkedHashSet<>(), mModifiedMaterials = new LinkedHashSet<>();
+	private int mComparedVolumes = 0;
+	
+	private final GeometryHashTree mOld, mNew;
+	private final Set<String> mVisited = new HashSet<>();
+	
+	
+	
+	private GeometryDiff( GeometryHashTree aOld, GeometryHashTree aNew )
+	{
+		mOld = aOld;
+		mNew = aNew;
+	}
+	
+	
+	
+	public static GeometryDiff compare( Geant4Basic aOld, Geant4Basic aNew ) throws IllegalArgumentException
+	{
+		return compare( GeometryHashTree.of( aOld ), GeometryHashTree.of( aNew ) );
+	}
+	
+	
+	
+	public static GeometryDiff compare( File aOld, File aNew ) throws IOException
+	{
+		return compare( GeometryHashTree.read( aOld ), GeometryHashTree.read( aNew ) );
+	}
+	
+	
+	
+	public static GeometryDiff compare( GeometryHashTree aOld, GeometryHashTree aNew ) throws IllegalArgumentException
+	{
+		if( aOld == null || aNew == null )
+			throw new IllegalArgumentException("empty GeometryHashTree");
+		
+		GeometryDiff diff = new GeometryDiff( aOld, aNew );
+		// world volumes are compared with each other even if they were renamed
+		diff._compareVolume( aOld.mVolumes.get( aOld.mWorldRef ), aNew.mVolumes.get( aNew.mWorldRef ) );
+		return diff;
+	}
+	
+	
+	
+	public boolean isEmpty()
+	{
+		return mAddedVolumes.isEmpty() && mRemovedVolumes.isEmpty() && mModifiedVolumes.isEmpty()
+				&& mAddedSolids.isEmpty() && mRemovedSolids.isEmpty() && mModifiedSolids.isEmpty()
+				&& mAddedMaterials.isEmpty() && mRemovedMaterials.isEmpty() && mModifiedMaterials.isEmpty();
+	}
+	
+	
+	
+	public Set<String> getAddedVolumes() { return Collections.unmodifiableSet( mAddedVolumes ); }
+	public Set<String> getRemovedVolumes() { return Collections.unmodifiableSet( mRemovedVolumes ); }
+	public Set<String> getModifiedVolumes() { return Collections.unmodifiableSet( mModifiedVolumes ); }
+	
+	public Set<String> getAddedSolids() { return Collections.unmodifiableSet( mAddedSolids ); }
+	public Set<String> getRemovedSolids() { return Collections.unmodifiableSet( mRemovedSolids ); }
+	public Set<String> getModifiedSolids() { return Collections.unmodifiableSet( mModifiedSolids ); }
+	
+	public Set<String> getAddedMaterials() { return Collections.unmodifiableSet( mAddedMaterials ); }
+	public Set<String> getRemovedMaterials() { return Collections.unmodifiableSet( mRemovedMaterials ); }
+	public Set<String> getModifiedMaterials() { return Collections.unmodifiableSet( mModifiedMaterials ); }
+	
+	
+	
+	public int getComparedVolumes()
+	{ // number of volume pairs visited, all other subtrees were skipped as identical
+		return mComparedVolumes;
+	}
+	
+	
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		_append( sb, "+ volume ", mAddedVolumes );
+		_append( sb, "- volume ", mRemovedVolumes );
+		_append( sb, "~ volume ", mModifiedVolumes );
+		_append( sb, "+ solid ", mAddedSolids );
+		_append( sb, "- solid ", mRemovedSolids );
+		_append( sb, "~ solid ", mModifiedSolids );
+		_append( sb, "+ material ", mAddedMaterials );
+		_append( sb, "- material ", mRemovedMaterials );
+		_append( sb, "~ material ", mModifiedMaterials );
+		if( sb.length() == 0 )
+			sb.append("no differences\n");
+		return sb.toString();
+	}
+	
+	
+	
+	private void _compareVolume( GeometryHashTree.Volume aOld, GeometryHashTree.Volume aNew )
+	{
+		if( !mVisited.add( aNew.mName ) )
+			return; // volumes placed more than once are compared once
+		mComparedVolumes++;
+		
+		if( aOld.mSubtreeHash == aNew.mSubtreeHash )
+			return;
+		
+		if( aOld.mLocalHash != aNew.mLocalHash )
+		{
+			mModifiedVolumes.add( aNew.mName );
+			this._compareRef( aOld.mSolidRef, aNew.mSolidRef, mOld.mSolids, mNew.mSolids, mAddedSolids, mRemovedSolids, mModifiedSolids );
+			this._compareRef( aOld.mMatRef, aNew.mMatRef, mOld.mMaterials, mNew.mMaterials, mAddedMaterials, mRemovedMaterials, mModifiedMaterials );
+		}
+		
+		for( String childRef : new LinkedHashSet<>( aOld.mChildRefs ) )
+		{
+			GeometryHashTree.Volume newChild = mNew.mVolumes.get( childRef );
+			if( newChild == null )
+				this._collect( mOld, mOld.mVolumes.get( childRef ), mNew, mRemovedVolumes, mRemovedSolids, mRemovedMaterials );
+			else
+				this._compareVolume( mOld.mVolumes.get( childRef ), newChild ); // recursive
+		}
+		
+		for( String childRef : new LinkedHashSet<>( aNew.mChildRefs ) )
+		{
+			if( !mOld.mVolumes.containsKey( childRef ) )
+				this._collect( mNew, mNew.mVolumes.get( childRef ), mOld, mAddedVolumes, mAddedSolids, mAddedMaterials );
+		}
+	}
+	
+	
+	
+	private void _compareRef( String aOldRef, String aNewRef, Map<String, Long> aOldMap, Map<String, Long> aNewMap,
+			Set<String> aAdded, Set<String> aRemoved, Set<String> aModified )
+	{
+		if( aOldRef != null && !aNewMap.containsKey( aOldRef ) )
+			aRemoved.add( aOldRef );
+		if( aNewRef == null )
+			return;
+		
+		Long oldHash = aOldMap.get( aNewRef );
+		if( oldHash == null )
+			aAdded.add( aNewRef );
+		else if( !oldHash.equals( aNewMap.get( aNewRef ) ) )
+			aModified.add( aNewRef );
+	}
+	
+	
+	
+	// collects a subtree that exists only in aFrom, stopping at volumes that also exist in aOther
+	private void _collect( GeometryHashTree aFrom, GeometryHashTree.Volume aVol, GeometryHashTree aOther,
+			Set<String> aVolumes, Set<String> aSolids, Set<String> aMaterials )
+	{
+		if( !aVolumes.add( aVol.mName ) )
+			return;
+		
+		if( aVol.mSolidRef != null && !aOther.mSolids.containsKey( aVol.mSolidRef ) )
+			aSolids.add( aVol.mSolidRef );
+		if( aVol.mMatRef != null && !aOther.mMaterials.containsKey( aVol.mMatRef ) )
+			aMaterials.add( aVol.mMatRef );
+		
+		for( String childRef : aVol.mChildRefs )
+		{
+			if( !aOther.mVolumes.containsKey( childRef ) )
+				this._collect( aFrom, aFrom.mVolumes.get( childRef ), aOther, aVolumes, aSolids, aMaterials ); // recursive
+		}
+	}
+	
+	
+	
+	private static void _append( StringBuilder aBuilder, String aPrefix, Set<String> aNames )
+	{
+		for( String name : aNames ) { aBuilder.append( aPrefix ).append( name ).append('\n'); }
+	}
+}
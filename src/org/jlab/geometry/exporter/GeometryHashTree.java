@@ -0,0 +1,640 @@
+package org.jlab.geometry.exporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import org.jlab.detector.volume.G4Box;
+import org.jlab.detector.volume.G4Tubs;
+import org.jlab.detector.volume.Geant4Basic;
+import org.jlab.detector.units.SystemOfUnits.Length;
+
+import eu.mihosoft.vrl.v3d.Vector3d;
+
+/**
+ * <h1> Geometry Hash Tree </h1>
+ * 
+ * Per-subtree (Merkle) hashes of a geometry, built either from a Geant4Basic tree or
+ * from a GDML file written by GdmlFile, for comparison with GeometryDiff.
+ * 
+ * Every solid, material and logical volume gets a hash of its own content.
+ * Every volume also gets a subtree hash that covers its content and the subtree hashes
+ * of the volumes placed inside it, so two identical subtrees can be recognised by
+ * comparing a single number.
+ * 
+ * Both are hashed over the same canonical form, so that a tree and the file GdmlFile
+ * writes from it with its default units have the same hashes: solids by their full lengths,
+ * lengths in mm and angles in rad, placements by the values of their position and rotation
+ * whether they are given in the physvol or by reference, and materials by their content.
+ * Numbers are hashed by value, rounded to about nine significant digits, so differences
+ * in float formatting and in units are not reported.
+ * 
+ * @see GeometryDiff
+ */
+
+public class GeometryHashTree
+{
+	static final class Volume
+	{
+		final String mName;
+		String mSolidRef, mMatRef;
+		long mContentHash = 17;
+		final List<String> mChildRefs = new ArrayList<>();
+		final List<Long> mPlacementHashes = new ArrayList<>();
+		long mLocalHash, mSubtreeHash;
+		int mState; // 0 = not hashed, 1 = in progress, 2 = done
+		
+		Volume( String aName )
+		{
+			mName = aName;
+		}
+	}
+	
+	final Map<String, Long> mSolids = new HashMap<>();
+	final Map<String, Long> mMaterials = new HashMap<>();
+	final Map<String, Long> mDefines = new HashMap<>(); // positions and rotations, by canonical value
+	final Map<String, Volume> mVolumes = new HashMap<>();
+	String mWorldRef;
+	
+	private static final int LENGTH = 0, ANGLE = 1, DENSITY = 2, ATOM = 3;
+	private static final String TREE_ANGLE_UNIT = "deg"; // the default of GdmlFile
+	
+	
+	
+	private GeometryHashTree() {}
+	
+	
+	
+	public static GeometryHashTree of( Geant4Basic aTopVol ) throws IllegalArgumentException
+	{
+		return of( aTopVol, VolumeFilters.all() );
+	}
+	
+	
+	
+	public static GeometryHashTree of( Geant4Basic aTopVol, VolumeFilter aFilter ) throws IllegalArgumentException
+	{
+		GeometryHashTree tree = new GeometryHashTree();
+		
+		GeometryWalker walker = new GeometryWalker();
+		walker.setFilter( aFilter );
+		walker.setDesiredAngleUnit( TREE_ANGLE_UNIT );
+		walker.addListener( tree.new TreeHasher( TREE_ANGLE_UNIT ) );
+		walker.walk( aTopVol );
+		
+		tree._finish();
+		return tree;
+	}
+	
+	
+	
+	public static GeometryHashTree read( File aGdmlFile ) throws IOException
+	{
+		GeometryHashTree tree = new GeometryHashTree();
+		
+		try
+		{
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			SAXParser parser = factory.newSAXParser();
+			parser.parse( aGdmlFile, tree.new GdmlHasher() );
+		}
+		catch( ParserConfigurationException | SAXException e )
+		{
+			throw new IOException("could not read \""+ aGdmlFile +"\"", e );
+		}
+		
+		if( tree.mWorldRef == null )
+			throw new IOException("no world volume in \""+ aGdmlFile +"\"");
+		
+		tree._finish();
+		return tree;
+	}
+	
+	
+	
+	public long getRootHash()
+	{
+		return mVolumes.get( mWorldRef ).mSubtreeHash;
+	}
+	
+	
+	
+	public String getWorldName()
+	{
+		return mWorldRef;
+	}
+	
+	
+	
+	public int getVolumeCount()
+	{
+		return mVolumes.size();
+	}
+	
+	
+	
+	private void _finish() throws IllegalArgumentException
+	{
+		Volume world = mVolumes.get( mWorldRef );
+		if( world == null )
+			throw new IllegalArgumentException("could not find world volume \""+ mWorldRef +"\"");
+		
+		this._hashVolume( world );
+	}
+	
+	
+	
+	private void _hashVolume( Volume aVol ) throws IllegalArgumentException
+	{
+		if( aVol.mState == 2 )
+			return;
+		if( aVol.mState == 1 )
+			throw new IllegalArgumentException("volume \""+ aVol.mName +"\" is placed inside itself");
+		aVol.mState = 1;
+		
+		long local = aVol.mContentHash;
+		local = _mix( local, _refHash( mSolids, aVol.mSolidRef ) );
+		local = _mix( local, _refHash( mMaterials, aVol.mMatRef ) );
+		
+		long subtree = 0;
+		for( int i = 0; i < aVol.mChildRefs.size(); i++ )
+		{
+			String childRef = aVol.mChildRefs.get( i );
+			long placement = _mix( _hash( childRef ), aVol.mPlacementHashes.get( i ) );
+			local = _mix( local, placement );
+			
+			Volume child = mVolumes.get( childRef );
+			if( child == null )
+				throw new IllegalArgumentException("could not find logical volume \""+ childRef +"\"");
+			this._hashVolume( child ); // recursive
+			subtree = _mix( subtree, child.mSubtreeHash );
+		}
+		
+		aVol.mLocalHash = local;
+		aVol.mSubtreeHash = _mix( local, subtree );
+		aVol.mState = 2;
+	}
+	
+	
+	
+	private static long _refHash( Map<String, Long> aMap, String aRef )
+	{ // missing references still hash by name, so renaming them is noticed
+		if( aRef == null )
+			return 0;
+		Long hash = aMap.get( aRef );
+		return hash == null ? _hash( aRef ) : hash;
+	}
+	
+	
+	
+	static long _mix( long aHash, long aValue )
+	{
+		long h = ( aHash ^ aValue ) * 0x9E3779B97F4A7C15L;
+		return h ^ ( h >>> 29 );
+	}
+	
+	
+	
+	static long _hash( String aValue )
+	{
+		long h = 0xCBF29CE484222325L; // FNV-1a
+		for( int i = 0; i < aValue.length(); i++ )
+		{
+			h ^= aValue.charAt( i );
+			h *= 0x100000001B3L;
+		}
+		return h;
+	}
+	
+	
+	
+	static long _hash( double aValue )
+	{ // rounded to 31 bits of mantissa, so that a value converted from another unit hashes the same
+		if( aValue == 0.0 ) aValue = 0.0; // -0.0 and 0.0 are the same position
+		long bits = ( Double.doubleToLongBits( aValue ) + ( 1L << 20 ) ) & ~( ( 1L << 21 ) - 1 );
+		return _mix( 0x7FF1L, bits );
+	}
+	
+	
+	
+	static long _hashQuantity( double aValue, String aUnit, int aQuantity )
+	{ // in mm, rad, g/cm3 or g/mole, a value in a unit that is not known is hashed with the unit's name
+		double factor = _factor( aUnit, aQuantity );
+		if( factor == 0.0 )
+			return _mix( _hash( aValue ), _hash( aUnit ) );
+		return _hash( aValue * factor );
+	}
+	
+	
+	
+	private static double _factor( String aUnit, int aQuantity )
+	{ // or 0 if the unit is not known
+		switch( aQuantity )
+		{
+		case LENGTH:
+			switch( aUnit )
+			{
+			case "nm": return 1e-6;
+			case "um": return 1e-3;
+			case "mm": return 1.0;
+			case "cm": return 10.0;
+			case "m": return 1e3;
+			case "km": return 1e6;
+			}
+			break;
+		case ANGLE:
+			switch( aUnit )
+			{
+			case "rad": return 1.0;
+			case "mrad": return 1e-3;
+			case "deg": return Math.PI / 180.0;
+			}
+			break;
+		case DENSITY:
+			switch( aUnit )
+			{
+			case "g/cm3": return 1.0;
+			case "mg/cm3": return 1e-3;
+			case "kg/m3": return 1e-3;
+			}
+			break;
+		case ATOM:
+			switch( aUnit )
+			{
+			case "g/mole": return 1.0;
+			case "kg/mole": return 1e3;
+			}
+			break;
+		}
+		return 0.0;
+	}
+	
+	
+	
+	static long _hashVector( double aX, double aY, double aZ, String aUnit, int aQuantity )
+	{ // a position or rotation
+		long h = _hashQuantity( aX, aUnit, aQuantity );
+		h = _mix( h, _hashQuantity( aY, aUnit, aQuantity ) );
+		return _mix( h, _hashQuantity( aZ, aUnit, aQuantity ) );
+	}
+	
+	
+	
+	static long _hashBox( double aX, double aY, double aZ, String aLengthUnit )
+	{ // full lengths
+		long h = _hash("box");
+		return _mix( h, _hashVector( aX, aY, aZ, aLengthUnit, LENGTH ) );
+	}
+	
+	
+	
+	static long _hashTube( double aRMin, double aRMax, double aZ, double aStartPhi, double aDeltaPhi, String aLengthUnit, String aAngleUnit )
+	{ // full length in z
+		long h = _hash("tube");
+		h = _mix( h, _hashVector( aRMin, aRMax, aZ, aLengthUnit, LENGTH ) );
+		h = _mix( h, _hashQuantity( aStartPhi, aAngleUnit, ANGLE ) );
+		return _mix( h, _hashQuantity( aDeltaPhi, aAngleUnit, ANGLE ) );
+	}
+	
+	
+	
+	static long _hashMaterial( double aZ, double aDensity, String aDensityUnit, double aAtom, String aAtomUnit )
+	{
+		long h = _hash( aZ );
+		h = _mix( h, _hashQuantity( aDensity, aDensityUnit, DENSITY ) );
+		return _mix( h, _hashQuantity( aAtom, aAtomUnit, ATOM ) );
+	}
+	
+	
+	
+	static long _hashValue( String aValue )
+	{ // numbers are compared by value, not by their text
+		if( !aValue.isEmpty() )
+		{
+			char c = aValue.charAt( 0 );
+			if( ( c >= '0' && c <= '9' ) || c == '-' || c == '+' || c == '.' )
+			{
+				try {
+					return _hash( Double.parseDouble( aValue ) );
+				} catch( NumberFormatException e ) {
+					// not a number, hash as text
+				}
+			}
+		}
+		return _hash( aValue );
+	}
+	
+	
+	
+	private class TreeHasher implements GeometryListener
+	{
+		// GdmlFile writes the angles of a tube as they are stored, in its desired angle unit
+		private final String mTubeAngleUnit;
+		
+		TreeHasher( String aTubeAngleUnit )
+		{
+			mTubeAngleUnit = aTubeAngleUnit;
+		}
+		
+		public void beginGeometry( Geant4Basic aTopVol ) {}
+		
+		public void onMaterial( String aMatRef )
+		{ // as GdmlFile adds it, from its preset
+			double[] preset = GdmlFile.materialPreset( aMatRef );
+			if( preset == null )
+				mMaterials.put( aMatRef, _hash( aMatRef ) );
+			else
+				mMaterials.put( aMatRef, _hashMaterial( preset[0], preset[1], GdmlFile.PRESET_DENSITY_UNIT, preset[2], GdmlFile.PRESET_ATOM_UNIT ) );
+		}
+		
+		public void onSolid( Geant4Basic aSolid )
+		{
+			long h;
+			if( aSolid instanceof G4Box )
+			{
+				G4Box box = (G4Box) aSolid;
+				h = _hashBox( box.getXHalfLength()*2.0, box.getYHalfLength()*2.0, box.getZHalfLength()*2.0, Length.unit() );
+			}
+			else if( aSolid instanceof G4Tubs )
+			{
+				G4Tubs tubs = (G4Tubs) aSolid;
+				h = _hashTube( tubs.getRMin(), tubs.getRMax(), tubs.getZHalfLength()*2.0, tubs.getPhiStart(), tubs.getPhiDelta(), Length.unit(), mTubeAngleUnit );
+			}
+			else
+				h = _hash( aSolid.getType().toLowerCase() );
+			mSolids.put( "sol_"+ aSolid.getName(), h );
+		}
+		
+		public void onVolume( Geant4Basic aSolid, String aMatRef )
+		{
+			Volume vol = new Volume( "vol_"+ aSolid.getName() );
+			vol.mSolidRef = "sol_"+ aSolid.getName();
+			vol.mMatRef = aMatRef;
+			mVolumes.put( vol.mName, vol );
+		}
+		
+		public void onPlacement( GeometryPlacement aPlacement )
+		{
+			Vector3d pos = aPlacement.getPosition();
+			double[] rot = aPlacement.getRotation( aPlacement.getAngleUnit() );
+			long h = _mix( _hashVector( pos.x, pos.y, pos.z, Length.unit(), LENGTH ), _hashVector( rot[0], rot[1], rot[2], aPlacement.getAngleUnit(), ANGLE ) );
+			
+			Volume parent = mVolumes.get( "vol_"+ aPlacement.getParentName() );
+			parent.mChildRefs.add( "vol_"+ aPlacement.getVolume().getName() );
+			parent.mPlacementHashes.add( h );
+		}
+		
+		public void onWorld( Geant4Basic aTopVol )
+		{
+			mWorldRef = "vol_"+ aTopVol.getName();
+		}
+		
+		public void endGeometry() {}
+	}
+	
+	
+	
+	private class GdmlHasher extends DefaultHandler
+	{
+		// depth 1 is <gdml>, 2 a section, 3 an entry in a section, 4 and below its content
+		private int mDepth = 0;
+		private String mSection;
+		private String mEntryName;
+		private long mEntryHash; // of the element names and attributes
+		private long mCanonicalHash; // of the values, if the entry is one that GdmlFile writes
+		private boolean mCanonical;
+		private boolean mUnparsed; // a number did not parse, e.g. an expression
+		private double mMaterialZ, mDensity, mAtom;
+		private String mDensityUnit, mAtomUnit;
+		private Volume mVolume;
+		private int mPlacement = -1;
+		private long mPosition, mRotation, mPlacementExtra;
+		
+		@Override
+		public void startElement( String aUri, String aLocalName, String aQName, Attributes aAttributes )
+		{
+			mDepth++;
+			
+			switch( mDepth )
+			{
+			case 2:
+				mSection = aQName;
+				break;
+				
+			case 3:
+				mEntryName = aAttributes.getValue("name");
+				mEntryHash = _mix( _hash( aQName ), _hashAttributes( aAttributes ) );
+				mUnparsed = false;
+				mCanonical = this._startEntry( aQName, aAttributes ) && !mUnparsed;
+				if( "structure".equals( mSection ) )
+				{
+					mVolume = new Volume( mEntryName );
+				}
+				else if( "setup".equals( mSection ) && aQName.equals("world") )
+				{
+					mWorldRef = aAttributes.getValue("ref");
+				}
+				break;
+				
+			case 4:
+				if( mVolume != null )
+				{
+					switch( aQName )
+					{
+					case "materialref":
+						mVolume.mMatRef = aAttributes.getValue("ref");
+						break;
+					case "solidref":
+						mVolume.mSolidRef = aAttributes.getValue("ref");
+						break;
+					case "physvol":
+						mVolume.mChildRefs.add( null );
+						mVolume.mPlacementHashes.add( 0L );
+						mPlacement = mVolume.mChildRefs.size() - 1;
+						mPosition = _hashVector( 0.0, 0.0, 0.0, "mm", LENGTH );
+						mRotation = _hashVector( 0.0, 0.0, 0.0, "rad", ANGLE );
+						mPlacementExtra = _hashAttributes( aAttributes );
+						break;
+					default:
+						mVolume.mContentHash = _mix( mVolume.mContentHash, _mix( _hash( aQName ), _hashAttributes( aAttributes ) ) );
+					}
+				}
+				else
+				{
+					mEntryHash = _mix( mEntryHash, _mix( _hash( aQName ), _hashAttributes( aAttributes ) ) );
+					if( mCanonical && mSection.equals("materials") && aQName.equals("D") )
+					{
+						mDensity = this._number( aAttributes, "value", 0.0 );
+						mDensityUnit = _unit( aAttributes, "unit", "g/cm3" );
+					}
+					else if( mCanonical && mSection.equals("materials") && aQName.equals("atom") )
+					{
+						mAtom = this._number( aAttributes, "value", 0.0 );
+						mAtomUnit = _unit( aAttributes, "unit", "g/mole" );
+					}
+					else
+						mCanonical = false;
+				}
+				break;
+				
+			default:
+				if( mDepth < 5 )
+					break;
+				if( mVolume != null && mPlacement >= 0 && mDepth == 5 )
+				{
+					mUnparsed = false;
+					switch( aQName )
+					{
+					case "volumeref":
+						mVolume.mChildRefs.set( mPlacement, aAttributes.getValue("ref") );
+						break;
+					case "position":
+						mPosition = this._vector( aAttributes, "mm", LENGTH );
+						break;
+					case "positionref":
+						mPosition = _refHash( mDefines, aAttributes.getValue("ref") );
+						break;
+					case "rotation":
+						mRotation = this._vector( aAttributes, "rad", ANGLE );
+						break;
+					case "rotationref":
+						mRotation = _refHash( mDefines, aAttributes.getValue("ref") );
+						break;
+					default:
+						mPlacementExtra = _mix( mPlacementExtra, _mix( _hash( aQName ), _hashAttributes( aAttributes ) ) );
+					}
+					if( mUnparsed ) // hashed by its text instead
+						mPlacementExtra = _mix( mPlacementExtra, _mix( _hash( aQName ), _hashAttributes( aAttributes ) ) );
+				}
+				else if( mVolume != null )
+					mVolume.mContentHash = _mix( mVolume.mContentHash, _mix( _hash( aQName ), _hashAttributes( aAttributes ) ) );
+				else
+				{
+					mEntryHash = _mix( mEntryHash, _mix( _hash( aQName ), _hashAttributes( aAttributes ) ) );
+					mCanonical = false;
+				}
+			}
+		}
+		
+		@Override
+		public void endElement( String aUri, String aLocalName, String aQName ) throws SAXException
+		{
+			if( mDepth == 4 && mPlacement >= 0 )
+			{
+				long h = _mix( mPosition, mRotation );
+				if( mPlacementExtra != 0 )
+					h = _mix( h, mPlacementExtra );
+				mVolume.mPlacementHashes.set( mPlacement, h );
+				mPlacement = -1;
+			}
+			
+			if( mDepth == 3 && mEntryName != null )
+			{
+				if( mCanonical && mSection.equals("materials") )
+					mCanonicalHash = mDensityUnit == null || mAtomUnit == null || mUnparsed ? mEntryHash
+							: _hashMaterial( mMaterialZ, mDensity, mDensityUnit, mAtom, mAtomUnit );
+				long hash = mCanonical && !mUnparsed ? mCanonicalHash : mEntryHash;
+				
+				switch( mSection )
+				{
+				case "define":
+					mDefines.put( mEntryName, hash );
+					break;
+				case "materials":
+					mMaterials.put( mEntryName, hash );
+					break;
+				case "solids":
+					mSolids.put( mEntryName, hash );
+					break;
+				case "structure":
+					if( mVolume.mChildRefs.contains( null ) )
+						throw new SAXException("physvol without volumeref in \""+ mEntryName +"\"");
+					mVolumes.put( mEntryName, mVolume );
+					break;
+				}
+			}
+			if( mDepth == 3 )
+				mVolume = null;
+			
+			mDepth--;
+		}
+		
+		private boolean _startEntry( String aQName, Attributes aAttributes )
+		{ // sets the canonical hash of a define, solid or material that GdmlFile writes, and returns false for any other entry
+			switch( mSection +"/"+ aQName )
+			{
+			case "define/position":
+				mCanonicalHash = this._vector( aAttributes, "mm", LENGTH );
+				return true;
+			case "define/rotation":
+				mCanonicalHash = this._vector( aAttributes, "rad", ANGLE );
+				return true;
+			case "solids/box":
+				mCanonicalHash = _hashBox( this._number( aAttributes, "x", 0.0 ), this._number( aAttributes, "y", 0.0 ), this._number( aAttributes, "z", 0.0 ),
+						_unit( aAttributes, "lunit", "mm" ) );
+				return true;
+			case "solids/tube":
+				mCanonicalHash = _hashTube( this._number( aAttributes, "rmin", 0.0 ), this._number( aAttributes, "rmax", 0.0 ), this._number( aAttributes, "z", 0.0 ),
+						this._number( aAttributes, "startphi", 0.0 ), this._number( aAttributes, "deltaphi", 0.0 ),
+						_unit( aAttributes, "lunit", "mm" ), _unit( aAttributes, "aunit", "rad" ) );
+				return true;
+			case "materials/material":
+				// completed by its D and atom
+				mMaterialZ = this._number( aAttributes, "Z", 0.0 );
+				mDensityUnit = null;
+				mAtomUnit = null;
+				return aAttributes.getValue("Z") != null;
+			default:
+				return false;
+			}
+		}
+		
+		private long _vector( Attributes aAttributes, String aDefaultUnit, int aQuantity )
+		{
+			return _hashVector( this._number( aAttributes, "x", 0.0 ), this._number( aAttributes, "y", 0.0 ), this._number( aAttributes, "z", 0.0 ),
+					_unit( aAttributes, "unit", aDefaultUnit ), aQuantity );
+		}
+		
+		private double _number( Attributes aAttributes, String aName, double aDefault )
+		{ // a number that does not parse sets mUnparsed, and the entry is hashed by its text
+			String value = aAttributes.getValue( aName );
+			if( value == null )
+				return aDefault;
+			try {
+				return Double.parseDouble( value );
+			} catch( NumberFormatException e ) {
+				mUnparsed = true;
+				return 0.0;
+			}
+		}
+		
+		private String _unit( Attributes aAttributes, String aName, String aDefault )
+		{
+			String unit = aAttributes.getValue( aName );
+			return unit == null ? aDefault : unit;
+		}
+		
+		private long _hashAttributes( Attributes aAttributes )
+		{ // order independent, and without the name of the entry itself
+			long h = 0;
+			for( int i = 0; i < aAttributes.getLength(); i++ )
+			{
+				String name = aAttributes.getQName( i );
+				if( name.equals("name") ) continue;
+				h += _mix( _hash( name ), _hashValue( aAttributes.getValue( i ) ) );
+			}
+			return h;
+		}
+	}
+}
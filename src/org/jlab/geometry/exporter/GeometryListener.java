@@ -0,0 +1,31 @@
+package org.jlab.geometry.exporter;
+
+import org.jlab.detector.volume.Geant4Basic;
+
+/**
+ * Receives the events emitted by a GeometryWalker.
+ * 
+ * Events arrive in an order that can be written out directly:
+ * every solid before the volume that uses it,
+ * every volume before it is placed,
+ * and every placement after both its parent and child volumes.
+ * 
+ * @see GeometryWalker
+ */
+
+public interface GeometryListener
+{
+	public void beginGeometry( Geant4Basic aTopVol );
+	
+	public void onMaterial( String aMatRef );
+	
+	public void onSolid( Geant4Basic aSolid );
+	
+	public void onVolume( Geant4Basic aSolid, String aMatRef );
+	
+	public void onPlacement( GeometryPlacement aPlacement );
+	
+	public void onWorld( Geant4Basic aTopVol );
+	
+	public void endGeometry();
+}
@@ -0,0 +1,75 @@
+package org.jlab.geometry.exporter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of small changes to the placements of named volumes, for one variant of a geometry,
+ * e.g. in a misalignment or tolerance study.
+ * 
+ * Translations are added to the volume's getLocalPosition(), in the current length unit.
+ * Rotations are added to its getLocalRotation(), in the exporter's actual angle unit and
+ * in the volume's own rotation order. Changes to the same volume accumulate.
+ * 
+ * @see GdmlFile#writeVariants(String, java.util.List)
+ */
+
+public class GeometryPerturbation
+{
+	// volume name -> dx, dy, dz, d1, d2, d3
+	private final Map<String, double[]> mDeltas = new LinkedHashMap<>();
+	
+	
+	
+	public void addTranslation( String aVolName, double aX, double aY, double aZ ) throws IllegalArgumentException
+	{
+		double[] delta = this._delta( aVolName );
+		delta[0] += aX;
+		delta[1] += aY;
+		delta[2] += aZ;
+	}
+	
+	
+	
+	public void addRotation( String aVolName, double aR1, double aR2, double aR3 ) throws IllegalArgumentException
+	{
+		double[] delta = this._delta( aVolName );
+		delta[3] += aR1;
+		delta[4] += aR2;
+		delta[5] += aR3;
+	}
+	
+	
+	
+	public Set<String> getVolumeNames()
+	{
+		return Collections.unmodifiableSet( mDeltas.keySet() );
+	}
+	
+	
+	
+	public double[] getTranslation( String aVolName )
+	{ // returns a copy, zero if the volume is not moved
+		double[] delta = mDeltas.get( aVolName );
+		return delta == null ? new double[3] : new double[]{ delta[0], delta[1], delta[2] };
+	}
+	
+	
+	
+	public double[] getRotation( String aVolName )
+	{ // returns a copy, zero if the volume is not rotated
+		double[] delta = mDeltas.get( aVolName );
+		return delta == null ? new double[3] : new double[]{ delta[3], delta[4], delta[5] };
+	}
+	
+	
+	
+	private double[] _delta( String aVolName ) throws IllegalArgumentException
+	{
+		if( aVolName.isEmpty() )
+			throw new IllegalArgumentException("empty String aVolName");
+		return mDeltas.computeIfAbsent( aVolName, k -> new double[6] );
+	}
+}
@@ -0,0 +1,171 @@
+package org.jlab.geometry.exporter;
+
+import org.jlab.detector.volume.Geant4Basic;
+
+import eu.mihosoft.vrl.v3d.Vector3d;
+
+/**
+ * A child volume placed inside its parent, with the position and rotation already
+ * converted to the units requested by the GeometryWalker.
+ * The rotation is always given in the "xyz" order used by GDML,
+ * whatever order the volume was rotated in.
+ * 
+ * Placements are shared between all listeners of a walk and must not be modified.
+ */
+
+public class GeometryPlacement
+{
+	private final String mParentName;
+	private final Geant4Basic mVolume;
+	private final Vector3d mPosition;
+	private final double[] mRotation;
+	private final String mRotationOrder;
+	private final String mAngleUnit;
+	private final boolean mHasPosition, mHasRotation;
+	
+	
+	
+	public GeometryPlacement( String aParentName, Geant4Basic aVolume, String aActualAngleUnit, String aDesiredAngleUnit ) throws IllegalArgumentException
+	{
+		this( aParentName, _check( aVolume ), aVolume.getLocalPosition(), aVolume.getLocalRotation(), aVolume.getLocalRotationOrder(), aActualAngleUnit, aDesiredAngleUnit );
+	}
+	
+	
+	
+	// places aVolume with another local position and rotation than its own, e.g. for a GeometryPerturbation
+	GeometryPlacement( String aParentName, Geant4Basic aVolume, Vector3d aPosition, double[] aRotation, String aRotationOrder, String aActualAngleUnit, String aDesiredAngleUnit ) throws IllegalArgumentException
+	{
+		if( aParentName.isEmpty() )
+			throw new IllegalArgumentException("empty String aParentName");
+		if( aVolume == null )
+			throw new IllegalArgumentException("empty Geant4Basic");
+		
+		mParentName = aParentName;
+		mVolume = aVolume;
+		
+		mPosition = new Vector3d( aPosition.x, aPosition.y, aPosition.z );
+		mHasPosition = !( aPosition.x == 0.0 && aPosition.y == 0.0 && aPosition.z == 0.0 );
+		
+		double[] rot = aRotation.clone();
+		if( aRotationOrder != null && !aRotationOrder.equalsIgnoreCase("xyz") )
+		{
+			rot = GeometryTransform.toGdmlAngles( convertAngles( rot, aActualAngleUnit, "rad" ), aRotationOrder );
+			mRotation = convertAngles( rot, "rad", aDesiredAngleUnit );
+		}
+		else
+			mRotation = convertAngles( rot, aActualAngleUnit, aDesiredAngleUnit );
+		mRotationOrder = "xyz";
+		mAngleUnit = aDesiredAngleUnit;
+		mHasRotation = !( mRotation[0] == 0.0 && mRotation[1] == 0.0 && mRotation[2] == 0.0 );
+	}
+	
+	
+	
+	// places aVolume in aParentName with a composed transform, e.g. in the world frame
+	public GeometryPlacement( String aParentName, Geant4Basic aVolume, GeometryTransform aTransform, String aDesiredAngleUnit ) throws IllegalArgumentException
+	{
+		if( aParentName.isEmpty() )
+			throw new IllegalArgumentException("empty String aParentName");
+		if( aVolume == null )
+			throw new IllegalArgumentException("empty Geant4Basic");
+		if( aTransform == null )
+			throw new IllegalArgumentException("empty GeometryTransform");
+		
+		mParentName = aParentName;
+		mVolume = aVolume;
+		
+		mPosition = aTransform.getPosition();
+		mHasPosition = !( mPosition.x == 0.0 && mPosition.y == 0.0 && mPosition.z == 0.0 );
+		
+		mRotation = convertAngles( aTransform.getGdmlAngles(), "rad", aDesiredAngleUnit );
+		mRotationOrder = "xyz";
+		mAngleUnit = aDesiredAngleUnit;
+		mHasRotation = !( mRotation[0] == 0.0 && mRotation[1] == 0.0 && mRotation[2] == 0.0 );
+	}
+	
+	
+	
+	public String getParentName()
+	{
+		return mParentName;
+	}
+	
+	
+	
+	public Geant4Basic getVolume()
+	{
+		return mVolume;
+	}
+	
+	
+	
+	public Vector3d getPosition()
+	{
+		return mPosition;
+	}
+	
+	
+	
+	public boolean hasPosition()
+	{ // no need to write a position if nothing moves
+		return mHasPosition;
+	}
+	
+	
+	
+	public double[] getRotation( String aAngleUnit ) throws IllegalArgumentException
+	{ // returns a copy in the requested unit
+		return convertAngles( mRotation.clone(), mAngleUnit, aAngleUnit );
+	}
+	
+	
+	
+	public String getRotationOrder()
+	{ // always "xyz"
+		return mRotationOrder;
+	}
+	
+	
+	
+	public String getAngleUnit()
+	{
+		return mAngleUnit;
+	}
+	
+	
+	
+	public boolean hasRotation()
+	{
+		return mHasRotation;
+	}
+	
+	
+	
+	private static Geant4Basic _check( Geant4Basic aVolume ) throws IllegalArgumentException
+	{ // before the volume is read for the constructor above
+		if( aVolume == null )
+			throw new IllegalArgumentException("empty Geant4Basic");
+		return aVolume;
+	}
+	
+	
+	
+	public static double[] convertAngles( double[] aAngles, String aFromUnit, String aToUnit ) throws IllegalArgumentException
+	{ // converts in place
+		if( aFromUnit.equals( aToUnit ) )
+			return aAngles;
+		
+		if( aFromUnit.equals("rad") && aToUnit.equals("deg") )
+		{
+			for( int i = 0; i < aAngles.length; i++) { aAngles[i] = Math.toDegrees( aAngles[i] ); }
+		}
+		else if( aFromUnit.equals("deg") && aToUnit.equals("rad") )
+		{
+			for( int i = 0; i < aAngles.length; i++) { aAngles[i] = Math.toRadians( aAngles[i] ); }
+		}
+		else
+			throw new IllegalArgumentException("unknown units: "+ aFromUnit +" -> "+ aToUnit );
+		
+		return aAngles;
+	}
+}
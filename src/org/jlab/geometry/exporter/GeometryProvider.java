@@ -0,0 +1,23 @@
+package org.jlab.geometry.exporter;
+
+import org.jlab.detector.volume.Geant4Basic;
+
+/**
+ * Builds one geometry for GdmlBatchExporter.
+ * 
+ * Classes named in a batch manifest must implement this and have a public constructor
+ * without arguments. A new instance is created for every export.
+ */
+
+public interface GeometryProvider
+{
+	// the top volume of the geometry, added to the exporter with addTopVolume()
+	public Geant4Basic createGeometry() throws Exception;
+	
+	
+	
+	// sets the exporter's options and material presets before the geometry is added
+	public default void configure( GdmlFile aExporter )
+	{
+	}
+}
@@ -0,0 +1,157 @@
+package org.jlab.geometry.exporter;
+
+import eu.mihosoft.vrl.v3d.Vector3d;
+
+/**
+ * A rigid placement of a volume in the frame of its parent: the volume is rotated,
+ * then translated.
+ * 
+ * Rotations are given as in GDML, where the angles rotate the frame and are applied
+ * in the given order, so "xyz" angles (a, b, c) describe the frame rotation
+ * Rz(c)*Ry(b)*Rx(a) and the volume itself is rotated by the inverse.
+ */
+
+public final class GeometryTransform
+{
+	public static final GeometryTransform IDENTITY = new GeometryTransform( new double[]{ 1, 0, 0, 0, 1, 0, 0, 0, 1 }, new double[]{ 0, 0, 0 } );
+	
+	// angles smaller than this are written as zero, to hide rounding from the conversions
+	private static final double ANGLE_EPSILON = 1e-12;
+	
+	private final double[] mRotation; // row-major 3x3, rotation of the volume
+	private final double[] mPosition;
+	
+	
+	
+	private GeometryTransform( double[] aRotation, double[] aPosition )
+	{
+		mRotation = aRotation;
+		mPosition = aPosition;
+	}
+	
+	
+	
+	public static GeometryTransform of( Vector3d aPosition, double[] aAngles, String aOrder ) throws IllegalArgumentException
+	{ // aAngles in radians
+		double[] frame = _frameRotation( aAngles, aOrder );
+		return new GeometryTransform( _transpose( frame ), new double[]{ aPosition.x, aPosition.y, aPosition.z } );
+	}
+	
+	
+	
+	// converts angles (radians) given in aOrder to the "xyz" order used by GDML
+	public static double[] toGdmlAngles( double[] aAngles, String aOrder ) throws IllegalArgumentException
+	{
+		if( aOrder.equalsIgnoreCase("xyz") )
+			return aAngles.clone();
+		
+		return _decompose( _frameRotation( aAngles, aOrder ) );
+	}
+	
+	
+	
+	// returns the placement of aChild, given in the frame of this transform, in the frame this transform is given in
+	public GeometryTransform compose( GeometryTransform aChild )
+	{
+		double[] r = mRotation, p = aChild.mPosition;
+		double[] rotation = _multiply( r, aChild.mRotation );
+		double[] position = new double[3];
+		for( int i = 0; i < 3; i++ )
+			position[i] = r[3*i]*p[0] + r[3*i+1]*p[1] + r[3*i+2]*p[2] + mPosition[i];
+		
+		return new GeometryTransform( rotation, position );
+	}
+	
+	
+	
+	public Vector3d getPosition()
+	{
+		return new Vector3d( mPosition[0], mPosition[1], mPosition[2] );
+	}
+	
+	
+	
+	public double[] getGdmlAngles()
+	{ // "xyz" angles in radians
+		return _decompose( _transpose( mRotation ) );
+	}
+	
+	
+	
+	private static double[] _frameRotation( double[] aAngles, String aOrder ) throws IllegalArgumentException
+	{
+		if( aAngles == null || aAngles.length != 3 )
+			throw new IllegalArgumentException("need 3 angles");
+		if( aOrder == null || aOrder.length() != 3 )
+			throw new IllegalArgumentException("unknown order \""+ aOrder +"\"");
+		
+		// each rotation is applied after the previous ones: M = R3 * R2 * R1
+		double[] m = IDENTITY.mRotation.clone();
+		for( int i = 0; i < 3; i++ )
+			m = _multiply( _axisRotation( Character.toLowerCase( aOrder.charAt( i ) ), aAngles[i] ), m );
+		return m;
+	}
+	
+	
+	
+	private static double[] _axisRotation( char aAxis, double aAngle ) throws IllegalArgumentException
+	{
+		double c = Math.cos( aAngle ), s = Math.sin( aAngle );
+		switch( aAxis )
+		{
+		case 'x': return new double[]{ 1, 0, 0,  0, c, -s,  0, s, c };
+		case 'y': return new double[]{ c, 0, s,  0, 1, 0,  -s, 0, c };
+		case 'z': return new double[]{ c, -s, 0,  s, c, 0,  0, 0, 1 };
+		default:
+			throw new IllegalArgumentException("unknown axis '"+ aAxis +"'");
+		}
+	}
+	
+	
+	
+	private static double[] _decompose( double[] m )
+	{ // m = Rz(c) * Ry(b) * Rx(a)
+		double a, b, c;
+		double sinB = -m[6];
+		if( Math.abs( sinB ) < 1.0 - 1e-12 )
+		{
+			b = Math.asin( sinB );
+			a = Math.atan2( m[7], m[8] );
+			c = Math.atan2( m[3], m[0] );
+		}
+		else
+		{ // gimbal lock, only a - c (or a + c) is defined
+			b = Math.copySign( Math.PI / 2.0, sinB );
+			a = Math.atan2( -m[5], m[4] );
+			c = 0.0;
+		}
+		return new double[]{ _clean( a ), _clean( b ), _clean( c ) };
+	}
+	
+	
+	
+	private static double _clean( double aAngle )
+	{
+		return Math.abs( aAngle ) < ANGLE_EPSILON ? 0.0 : aAngle;
+	}
+	
+	
+	
+	private static double[] _multiply( double[] a, double[] b )
+	{
+		double[] m = new double[9];
+		for( int i = 0; i < 3; i++ )
+		{
+			for( int j = 0; j < 3; j++ )
+				m[3*i+j] = a[3*i]*b[j] + a[3*i+1]*b[3+j] + a[3*i+2]*b[6+j];
+		}
+		return m;
+	}
+	
+	
+	
+	private static double[] _transpose( double[] m )
+	{
+		return new double[]{ m[0], m[3], m[6],  m[1], m[4], m[7],  m[2], m[5], m[8] };
+	}
+}
@@ -0,0 +1,242 @@
+package org.jlab.geometry.exporter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jlab.detector.volume.Geant4Basic;
+
+/**
+ * <h1> Geometry Walker </h1>
+ * 
+ * Traverses a Geant4Basic tree once and emits material, solid, volume and placement
+ * events to any number of GeometryListeners.
+ * Placements are computed once per volume and shared by all listeners.
+ * 
+ * Listeners added with addParallelListener() consume the events on their own thread
+ * behind a bounded queue, so slow sinks do not hold up the others.
+ * 
+ * In flattened mode only the top volume and the leaf volumes are emitted, and every leaf
+ * is placed directly in the top volume. The world transform of each volume is composed
+ * from its parent's once, on the way down the tree.
+ */
+
+public class GeometryWalker
+{
+	private final List<GeometryListener> mListeners = new ArrayList<>();
+	
+	private VolumeFilter mFilter = VolumeFilters.all();
+	private String mMatRef = "mat_vacuum";
+	private String mDesiredAngleUnit = "deg";
+	private String mActualAngleUnit = "rad";
+	private boolean mFlatten = false;
+	
+	
+	
+	public void addListener( GeometryListener aListener ) throws IllegalArgumentException
+	{
+		if( aListener == null )
+			throw new IllegalArgumentException("empty GeometryListener");
+		
+		mListeners.add( aListener );
+	}
+	
+	
+	
+	public void addParallelListener( GeometryListener aListener, int aQueueCapacity ) throws IllegalArgumentException
+	{
+		this.addListener( new AsyncGeometryListener( aListener, aQueueCapacity ) );
+	}
+	
+	
+	
+	public void setFilter( VolumeFilter aFilter ) throws IllegalArgumentException
+	{
+		if( aFilter == null )
+			throw new IllegalArgumentException("empty VolumeFilter");
+		
+		mFilter = aFilter;
+	}
+	
+	
+	
+	public void setMaterial( String aMatRef ) throws IllegalArgumentException
+	{
+		if( aMatRef.isEmpty() )
+			throw new IllegalArgumentException("empty String aMatRef");
+		
+		mMatRef = aMatRef;
+	}
+	
+	
+	
+	public void setDesiredAngleUnit( String aAngleUnit ) throws IllegalArgumentException
+	{
+		mDesiredAngleUnit = _checkAngleUnit( aAngleUnit );
+	}
+	
+	
+	
+	public void setActualAngleUnit( String aAngleUnit ) throws IllegalArgumentException
+	{
+		mActualAngleUnit = _checkAngleUnit( aAngleUnit );
+	}
+	
+	
+	
+	public void setFlatten( boolean aFlatten )
+	{
+		mFlatten = aFlatten;
+	}
+	
+	
+	
+	public void walk( Geant4Basic aTopVol ) throws IllegalArgumentException
+	{
+		if( aTopVol == null )
+			throw new IllegalArgumentException("empty Geant4Basic");
+		
+		int begun = 0;
+		RuntimeException error = null;
+		try
+		{
+			for( ; begun < mListeners.size(); begun++ ) { mListeners.get( begun ).beginGeometry( aTopVol ); }
+			
+			for( GeometryListener listener : mListeners ) { listener.onMaterial( mMatRef ); }
+			
+			// the top volume is always included, the filter only prunes its descendants
+			if( mFlatten )
+				this._walkFlat( aTopVol );
+			else
+				this._walkTree( aTopVol, 0 );
+			
+			for( GeometryListener listener : mListeners ) { listener.onWorld( aTopVol ); }
+		}
+		catch( RuntimeException e )
+		{
+			error = e;
+		}
+		
+		// always end every listener that has begun, so that parallel sinks release their threads
+		for( int i = 0; i < begun; i++ )
+		{
+			try {
+				mListeners.get( i ).endGeometry();
+			} catch( RuntimeException e ) {
+				if( error == null ) error = e;
+				else error.addSuppressed( e );
+			}
+		}
+		
+		if( error != null )
+			throw error;
+	}
+	
+	
+	
+	private void _walkTree( Geant4Basic aNode, int aDepth ) // children first, so that every volume exists before it is placed
+	{
+		List<Geant4Basic> children = aNode.getChildren();
+		List<Geant4Basic> accepted = new ArrayList<>( children.size() );
+		for( int i = 0; i < children.size(); i++ )
+		{
+			Geant4Basic child = children.get( i );
+			if( !mFilter.accept( child, aDepth + 1 ) ) continue;
+			accepted.add( child );
+			this._walkTree( child, aDepth + 1 ); // recursive
+		}
+		
+		for( GeometryListener listener : mListeners ) { listener.onSolid( aNode ); }
+		for( GeometryListener listener : mListeners ) { listener.onVolume( aNode, mMatRef ); }
+		
+		for( int i = 0; i < accepted.size(); i++ )
+		{
+			Geant4Basic child = accepted.get( i );
+			if( !_isPlaced( child ) ) continue;
+			
+			GeometryPlacement placement = new GeometryPlacement( aNode.getName(), child, mActualAngleUnit, mDesiredAngleUnit );
+			for( GeometryListener listener : mListeners ) { listener.onPlacement( placement ); }
+		}
+	}
+	
+	
+	
+	private void _walkFlat( Geant4Basic aTopVol )
+	{
+		List<GeometryPlacement> placements = new ArrayList<>();
+		this._flattenTree( aTopVol, 0, GeometryTransform.IDENTITY, aTopVol.getName(), placements );
+		
+		// the top volume has to exist before the leaves are placed in it
+		for( GeometryListener listener : mListeners ) { listener.onSolid( aTopVol ); }
+		for( GeometryListener listener : mListeners ) { listener.onVolume( aTopVol, mMatRef ); }
+		
+		for( int i = 0; i < placements.size(); i++ )
+		{
+			GeometryPlacement placement = placements.get( i );
+			for( GeometryListener listener : mListeners ) { listener.onPlacement( placement ); }
+		}
+	}
+	
+	
+	
+	private void _flattenTree( Geant4Basic aNode, int aDepth, GeometryTransform aNodeToWorld, String aTopName, List<GeometryPlacement> aPlacements )
+	{
+		List<Geant4Basic> children = aNode.getChildren();
+		for( int i = 0; i < children.size(); i++ )
+		{
+			Geant4Basic child = children.get( i );
+			if( !mFilter.accept( child, aDepth + 1 ) ) continue;
+			// unplaced volumes do not appear in the world, and neither does anything inside them
+			if( !_isPlaced( child ) ) continue;
+			
+			double[] rot = GeometryPlacement.convertAngles( child.getLocalRotation().clone(), mActualAngleUnit, "rad" );
+			String order = child.getLocalRotationOrder();
+			GeometryTransform childToWorld = aNodeToWorld.compose( GeometryTransform.of( child.getLocalPosition(), rot, order == null ? "xyz" : order ) );
+			
+			if( _hasAcceptedChild( child, aDepth + 1 ) )
+			{
+				this._flattenTree( child, aDepth + 1, childToWorld, aTopName, aPlacements ); // recursive
+			}
+			else
+			{
+				for( GeometryListener listener : mListeners ) { listener.onSolid( child ); }
+				for( GeometryListener listener : mListeners ) { listener.onVolume( child, mMatRef ); }
+				aPlacements.add( new GeometryPlacement( aTopName, child, childToWorld, mDesiredAngleUnit ) );
+			}
+		}
+	}
+	
+	
+	
+	private boolean _hasAcceptedChild( Geant4Basic aNode, int aDepth )
+	{
+		List<Geant4Basic> children = aNode.getChildren();
+		for( int i = 0; i < children.size(); i++ )
+		{
+			Geant4Basic child = children.get( i );
+			if( mFilter.accept( child, aDepth + 1 ) && _isPlaced( child ) ) return true;
+		}
+		return false;
+	}
+	
+	
+	
+	static boolean _isPlaced( Geant4Basic aNode )
+	{ // volumes with id 0 are not placed, so they only contribute logical volumes
+		int[] id = aNode.getId();
+		return !( id.length != 0 && id[0] == 0 );
+	}
+	
+	
+	
+	private static String _checkAngleUnit( String aAngleUnit ) throws IllegalArgumentException
+	{
+		switch( aAngleUnit )
+		{
+		case "deg":
+		case "rad":
+			return aAngleUnit;
+		default:
+			throw new IllegalArgumentException("unknown unit: "+aAngleUnit );
+		}
+	}
+}
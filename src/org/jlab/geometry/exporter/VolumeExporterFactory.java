@@ -1,18 +1,69 @@
 package org.jlab.geometry.exporter;
 
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 public class VolumeExporterFactory
 {
+	// exporters returned by releaseGdmlExporter(), ready to be handed out again
+	private static final int GDML_POOL_SIZE = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+	private static final ArrayDeque<GdmlFile> sGdmlPool = new ArrayDeque<>( GDML_POOL_SIZE );
+	// exporters that have been released and not handed out again, guarded by sGdmlPool
+	private static final Set<GdmlFile> sGdmlReleased = Collections.newSetFromMap( new IdentityHashMap<>() );
+	
+	
+	
 	public static GdmlExporter createGdmlFactory() throws IllegalArgumentException
 	{
-		try {
-			return new GdmlFile();
-		}
-		catch( ParserConfigurationException e )
+		return new GdmlFile();
+	}
+	
+	
+	
+	// returns a pooled exporter if one is available, otherwise a new one
+	public static GdmlFile acquireGdmlExporter()
+	{
+		synchronized( sGdmlPool )
 		{
-			e.printStackTrace();
+			GdmlFile exporter = sGdmlPool.poll();
+			if( exporter != null )
+			{
+				sGdmlReleased.remove( exporter );
+				return exporter;
+			}
+		}
+		
+		return new GdmlFile();
+	}
+	
+	
+	
+	// resets aExporter and keeps it for the next acquireGdmlExporter(), the exporter must not be used afterwards
+	// releasing an exporter again before it has been handed out again is an error
+	public static void releaseGdmlExporter( GdmlFile aExporter ) throws IllegalArgumentException, IllegalStateException
+	{
+		if( aExporter == null )
+			throw new IllegalArgumentException("empty GdmlFile");
+		
+		synchronized( sGdmlPool )
+		{ // marked before the reset, so that a second release cannot reset it while it is pooled
+			if( !sGdmlReleased.add( aExporter ) )
+				throw new IllegalStateException("GdmlExporter released twice");
+		}
+		
+		boolean pooled = false;
+		try {
+			aExporter.reset();
+			synchronized( sGdmlPool )
+			{
+				pooled = sGdmlPool.size() < GDML_POOL_SIZE; // otherwise dropped
+				if( pooled ) sGdmlPool.add( aExporter );
+			}
+		} finally {
+			if( !pooled )
+				synchronized( sGdmlPool ) { sGdmlReleased.remove( aExporter ); }
 		}
-		return null;
 	}
 }
@@ -0,0 +1,22 @@
+package org.jlab.geometry.exporter;
+
+import org.jlab.detector.volume.Geant4Basic;
+
+/**
+ * Selects which volumes of a Geant4Basic tree are exported.
+ * 
+ * A volume that is not accepted is skipped together with its entire subtree,
+ * so none of its descendants are visited.
+ * 
+ * @see VolumeFilters
+ */
+
+public interface VolumeFilter
+{
+	/**
+	 * @param aNode volume under consideration
+	 * @param aDepth distance from the top volume, which has depth 0
+	 * @return true if the volume and its subtree should be exported
+	 */
+	public boolean accept( Geant4Basic aNode, int aDepth );
+}
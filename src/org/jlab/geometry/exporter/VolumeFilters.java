@@ -0,0 +1,113 @@
+package org.jlab.geometry.exporter;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.jlab.detector.volume.Geant4Basic;
+
+/**
+ * <h1> Volume Filters </h1>
+ * 
+ * Common VolumeFilter implementations for partial exports.
+ */
+
+public final class VolumeFilters
+{
+	private VolumeFilters() {}
+	
+	
+	
+	public static VolumeFilter all()
+	{
+		return ( aNode, aDepth ) -> true;
+	}
+	
+	
+	
+	public static VolumeFilter maxDepth( final int aMaxDepth ) throws IllegalArgumentException
+	{
+		if( aMaxDepth < 0 )
+			throw new IllegalArgumentException("negative aMaxDepth");
+		
+		return ( aNode, aDepth ) -> aDepth <= aMaxDepth;
+	}
+	
+	
+	
+	public static VolumeFilter nameMatches( String aRegex ) throws IllegalArgumentException
+	{
+		if( aRegex.isEmpty() )
+			throw new IllegalArgumentException("empty String aRegex");
+		
+		final Pattern pattern = Pattern.compile( aRegex );
+		return ( aNode, aDepth ) -> pattern.matcher( aNode.getName() ).matches();
+	}
+	
+	
+	
+	// accepts volumes whose id starts with aIdPrefix, e.g. idStartsWith( 2 ) selects sector 2 and everything in it
+	public static VolumeFilter idStartsWith( int... aIdPrefix ) throws IllegalArgumentException
+	{
+		if( aIdPrefix == null || aIdPrefix.length == 0 )
+			throw new IllegalArgumentException("empty int[] aIdPrefix");
+		
+		final int[] prefix = aIdPrefix.clone();
+		return ( aNode, aDepth ) -> {
+			int[] id = aNode.getId();
+			return id.length >= prefix.length && Arrays.equals( Arrays.copyOf( id, prefix.length ), prefix );
+		};
+	}
+	
+	
+	
+	// restricts aFilter to volumes at or below aDepth, so that ancestors of the wanted volumes are still exported
+	public static VolumeFilter belowDepth( final int aDepth, final VolumeFilter aFilter ) throws IllegalArgumentException
+	{
+		if( aDepth < 0 )
+			throw new IllegalArgumentException("negative aDepth");
+		if( aFilter == null )
+			throw new IllegalArgumentException("empty VolumeFilter");
+		
+		return ( aNode, aNodeDepth ) -> aNodeDepth < aDepth || aFilter.accept( aNode, aNodeDepth );
+	}
+	
+	
+	
+	public static VolumeFilter and( final VolumeFilter... aFilters ) throws IllegalArgumentException
+	{
+		if( aFilters == null || aFilters.length == 0 )
+			throw new IllegalArgumentException("empty VolumeFilter[]");
+		
+		return ( aNode, aDepth ) -> {
+			for( VolumeFilter filter : aFilters ) {
+				if( !filter.accept( aNode, aDepth ) ) return false;
+			}
+			return true;
+		};
+	}
+	
+	
+	
+	public static VolumeFilter or( final VolumeFilter... aFilters ) throws IllegalArgumentException
+	{
+		if( aFilters == null || aFilters.length == 0 )
+			throw new IllegalArgumentException("empty VolumeFilter[]");
+		
+		return ( aNode, aDepth ) -> {
+			for( VolumeFilter filter : aFilters ) {
+				if( filter.accept( aNode, aDepth ) ) return true;
+			}
+			return false;
+		};
+	}
+	
+	
+	
+	public static VolumeFilter not( final VolumeFilter aFilter ) throws IllegalArgumentException
+	{
+		if( aFilter == null )
+			throw new IllegalArgumentException("empty VolumeFilter");
+		
+		return ( aNode, aDepth ) -> !aFilter.accept( aNode, aDepth );
+	}
+}